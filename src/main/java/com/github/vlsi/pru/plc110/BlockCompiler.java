@@ -0,0 +1,632 @@
+package com.github.vlsi.pru.plc110;
+
+import static com.github.vlsi.pru.plc110.ClassWriter.DUP;
+import static com.github.vlsi.pru.plc110.ClassWriter.GOTO;
+import static com.github.vlsi.pru.plc110.ClassWriter.DUP2;
+import static com.github.vlsi.pru.plc110.ClassWriter.I2L;
+import static com.github.vlsi.pru.plc110.ClassWriter.IADD;
+import static com.github.vlsi.pru.plc110.ClassWriter.IALOAD;
+import static com.github.vlsi.pru.plc110.ClassWriter.IAND;
+import static com.github.vlsi.pru.plc110.ClassWriter.IASTORE;
+import static com.github.vlsi.pru.plc110.ClassWriter.IFEQ;
+import static com.github.vlsi.pru.plc110.ClassWriter.IFGE;
+import static com.github.vlsi.pru.plc110.ClassWriter.IFGT;
+import static com.github.vlsi.pru.plc110.ClassWriter.IFLE;
+import static com.github.vlsi.pru.plc110.ClassWriter.IFLT;
+import static com.github.vlsi.pru.plc110.ClassWriter.IFNE;
+import static com.github.vlsi.pru.plc110.ClassWriter.IF_ICMPEQ;
+import static com.github.vlsi.pru.plc110.ClassWriter.IF_ICMPGE;
+import static com.github.vlsi.pru.plc110.ClassWriter.IF_ICMPNE;
+import static com.github.vlsi.pru.plc110.ClassWriter.IMUL;
+import static com.github.vlsi.pru.plc110.ClassWriter.INVOKESPECIAL;
+import static com.github.vlsi.pru.plc110.ClassWriter.INVOKESTATIC;
+import static com.github.vlsi.pru.plc110.ClassWriter.IOR;
+import static com.github.vlsi.pru.plc110.ClassWriter.IRETURN;
+import static com.github.vlsi.pru.plc110.ClassWriter.ISHL;
+import static com.github.vlsi.pru.plc110.ClassWriter.ISUB;
+import static com.github.vlsi.pru.plc110.ClassWriter.IUSHR;
+import static com.github.vlsi.pru.plc110.ClassWriter.IXOR;
+import static com.github.vlsi.pru.plc110.ClassWriter.L2I;
+import static com.github.vlsi.pru.plc110.ClassWriter.LCMP;
+import static com.github.vlsi.pru.plc110.ClassWriter.LCONST_0;
+import static com.github.vlsi.pru.plc110.ClassWriter.LSUB;
+import static com.github.vlsi.pru.plc110.ClassWriter.RETURN;
+import static com.github.vlsi.pru.plc110.DecodedProgram.DST;
+import static com.github.vlsi.pru.plc110.DecodedProgram.DST_MASK;
+import static com.github.vlsi.pru.plc110.DecodedProgram.DST_SHIFT;
+import static com.github.vlsi.pru.plc110.DecodedProgram.OP;
+import static com.github.vlsi.pru.plc110.DecodedProgram.OP2;
+import static com.github.vlsi.pru.plc110.DecodedProgram.OP2_IMM;
+import static com.github.vlsi.pru.plc110.DecodedProgram.OP2_MASK;
+import static com.github.vlsi.pru.plc110.DecodedProgram.SRC;
+import static com.github.vlsi.pru.plc110.DecodedProgram.SRC_MASK;
+import static com.github.vlsi.pru.plc110.DecodedProgram.STRIDE;
+import static com.github.vlsi.pru.plc110.DecodedProgram.TARGET;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Translates straight-line blocks of {@link DecodedProgram} to JVM classes.
+ * A block starts at any program counter, it spans single-cycle instructions and it ends
+ * with QB, JMP or JAL (the jump is included into the block), or right before memory transfer
+ * or unsupported instruction. The generated code keeps the registers in local variables,
+ * so HotSpot optimizes the whole block as a single method.
+ */
+final class BlockCompiler {
+  /**
+   * Limits block length, so the generated methods stay below HotSpot huge method limit.
+   */
+  static final int MAX_BLOCK_LENGTH = 64;
+
+  private static final String BLOCK_CLASS = "com/github/vlsi/pru/plc110/CompiledBlock";
+  private static final String TRACE_CLASS = "com/github/vlsi/pru/plc110/CompiledTrace";
+
+  // Local variables of CompiledBlock#execute
+  private static final int REGISTERS = 1;
+  private static final int CARRY_BOX = 2;
+  private static final int CARRY = 3;
+  private static final int TMP = 4;
+  private static final int REG_BASE = 5;
+  // Additional local variables of CompiledTrace#execute, CARRY_BOX is the state array there
+  private static final int BUDGET = REG_BASE + 32;
+  private static final int CYCLES = BUDGET + 1;
+  private static final int PC = CYCLES + 1;
+
+  private static final Method DEFINE_HIDDEN_CLASS;
+  private static final Object HIDDEN_CLASS_OPTIONS;
+
+  static {
+    Method defineHiddenClass = null;
+    Object options = null;
+    try {
+      // Java 15+
+      Class<?> classOption = Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+      options = Array.newInstance(classOption, 0);
+      defineHiddenClass = MethodHandles.Lookup.class.getMethod(
+          "defineHiddenClass", byte[].class, boolean.class, options.getClass());
+    } catch (ReflectiveOperationException e) {
+      // Fallback to a class loader
+    }
+    DEFINE_HIDDEN_CLASS = defineHiddenClass;
+    HIDDEN_CLASS_OPTIONS = options;
+  }
+
+  private final DecodedProgram program;
+  private final int[] lengths;
+  private final CompiledBlock[] blocks;
+  private BlockClassLoader classLoader;
+  private int classCount;
+
+  BlockCompiler(DecodedProgram program) {
+    this.program = program;
+    this.lengths = blockLengths(program);
+    this.blocks = new CompiledBlock[lengths.length];
+  }
+
+  private static int[] blockLengths(DecodedProgram program) {
+    int size = program.size();
+    int[] lengths = new int[size];
+    for (int pc = size - 1; pc >= 0; pc--) {
+      int op = program.op(pc);
+      if (DecodedProgram.isJump(op)) {
+        lengths[pc] = 1;
+      } else if (DecodedProgram.isStraight(op)) {
+        int next = pc + 1 < size ? lengths[pc + 1] : 0;
+        lengths[pc] = Math.min(next + 1, MAX_BLOCK_LENGTH);
+      }
+    }
+    return lengths;
+  }
+
+  /**
+   * Returns the number of cycles of the block that starts at given pc, or 0 if the instruction
+   * at pc should be interpreted.
+   */
+  int blockLength(int pc) {
+    return pc >= 0 && pc < lengths.length ? lengths[pc] : 0;
+  }
+
+  CompiledBlock getBlock(int pc) {
+    CompiledBlock block = blocks[pc];
+    if (block == null) {
+      block = compile(pc, lengths[pc]);
+      blocks[pc] = block;
+    }
+    return block;
+  }
+
+  boolean isCompiled(int pc) {
+    return blocks[pc] != null;
+  }
+
+  /**
+   * Drops compiled code of the block, so the next {@link #getBlock(int)} compiles it again.
+   */
+  void invalidate(int pc) {
+    blocks[pc] = null;
+  }
+
+  /**
+   * Translates given instructions, they should be a prefix of the block that starts at
+   * {@code start}.
+   */
+  CompiledBlock compile(int start, int length) {
+    ClassWriter cw = new ClassWriter(className(BLOCK_CLASS, start), BLOCK_CLASS);
+    ClassWriter.Code code = cw.new Code(12, REG_BASE + 32);
+    generateExecute(code, start, length);
+    return (CompiledBlock) instantiate(cw, BLOCK_CLASS, start, length, code);
+  }
+
+  /**
+   * Compiles a loop that was recorded by {@link TraceCompiler}.
+   *
+   * @param path program counters of the executed instructions, the instruction after the last
+   *             one is {@code path[0]}
+   * @param length number of instructions in the path
+   * @return compiled trace
+   */
+  CompiledTrace compileTrace(int[] path, int length) {
+    ClassWriter cw = new ClassWriter(className(TRACE_CLASS, path[0]), TRACE_CLASS);
+    ClassWriter.Code code = cw.new Code(12, PC + 1);
+    generateTrace(code, path, length);
+    return (CompiledTrace) instantiate(cw, TRACE_CLASS, path[0], length, code);
+  }
+
+  private String className(String superName, int start) {
+    // The same block might be compiled again after invalidation
+    return superName + "$" + start + "$" + classCount++;
+  }
+
+  private Object instantiate(ClassWriter cw, String superName, int start, int length,
+                             ClassWriter.Code execute) {
+    String name = cw.name;
+    ClassWriter.Code init = cw.new Code(3, 1);
+    init.aload(0).pushInt(start).pushInt(length)
+        .invoke(INVOKESPECIAL, superName, "<init>", "(II)V")
+        .op(RETURN);
+    cw.addMethod(ClassWriter.ACC_PUBLIC, "<init>", "()V", init);
+    cw.addMethod(ClassWriter.ACC_PUBLIC, "execute", "([I[I)I", execute);
+
+    try {
+      return defineClass(name, cw.toByteArray()).getConstructor().newInstance();
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException("Unable to instantiate compiled code at " + start, e);
+    }
+  }
+
+  private Class<?> defineClass(String name, byte[] bytes) throws ReflectiveOperationException {
+    if (DEFINE_HIDDEN_CLASS != null) {
+      try {
+        MethodHandles.Lookup lookup = (MethodHandles.Lookup) DEFINE_HIDDEN_CLASS.invoke(
+            MethodHandles.lookup(), bytes, true, HIDDEN_CLASS_OPTIONS);
+        return lookup.lookupClass();
+      } catch (InvocationTargetException e) {
+        throw new IllegalStateException("Unable to define class " + name, e.getCause());
+      }
+    }
+    if (classLoader == null) {
+      classLoader = new BlockClassLoader();
+    }
+    return classLoader.define(name.replace('/', '.'), bytes);
+  }
+
+  private void generateExecute(ClassWriter.Code code, int start, int length) {
+    int[] c = program.code;
+    RegisterUsage usage = new RegisterUsage();
+    for (int pc = start; pc < start + length; pc++) {
+      usage.add(c, pc * STRIDE);
+    }
+    usage.load(code, usage.readsCarry);
+
+    int end = start + length;
+    int last = end - 1;
+    int lastOp = c[last * STRIDE + OP];
+    if (!DecodedProgram.isJump(lastOp)) {
+      last = end;
+    }
+    for (int pc = start; pc < last; pc++) {
+      generateStraight(code, c, pc * STRIDE);
+    }
+    if (last < end && lastOp == DecodedProgram.JAL) {
+      // Return address is stored for JAL only
+      code.pushInt(last + 1);
+      writeDst(code, c, last * STRIDE);
+    }
+
+    usage.store(code);
+
+    if (last == end) {
+      code.pushInt(end).op(IRETURN);
+      return;
+    }
+    generateJump(code, c, last);
+  }
+
+  /**
+   * Generates a loop that repeats the recorded path while the whole iteration fits into
+   * the cycle budget. Each branch that goes in a different direction than during the recording
+   * is a side exit back to the interpreter.
+   */
+  private void generateTrace(ClassWriter.Code code, int[] path, int length) {
+    int[] c = program.code;
+    RegisterUsage usage = new RegisterUsage();
+    for (int k = 0; k < length; k++) {
+      usage.add(c, path[k] * STRIDE);
+    }
+    // Side exits might skip carry computation, so the carry has to be initialized anyway
+    usage.load(code, usage.readsCarry || usage.writesCarry);
+    code.aload(CARRY_BOX).pushInt(1).op(IALOAD).istore(BUDGET)
+        .pushInt(0).istore(CYCLES);
+
+    List<Integer> exits = new ArrayList<>();
+    int loop = code.position();
+    code.iload(BUDGET).iload(CYCLES).op(ISUB).pushInt(length);
+    int fits = code.jump(IF_ICMPGE);
+    sideExit(code, exits, path[0], 0);
+    code.bindJump(fits);
+
+    for (int k = 0; k < length; k++) {
+      int pc = path[k];
+      int p = pc * STRIDE;
+      int op = c[p + OP];
+      int next = k + 1 < length ? path[k + 1] : path[0];
+      if (DecodedProgram.isStraight(op)) {
+        generateStraight(code, c, p);
+        continue;
+      }
+      if (op == DecodedProgram.JMP || op == DecodedProgram.JAL) {
+        if (op == DecodedProgram.JAL) {
+          // Return address is stored before the target is read
+          code.pushInt(pc + 1);
+          writeDst(code, c, p);
+        }
+        if (c[p + OP2_MASK] == 0) {
+          continue;
+        }
+        readOperand(code, c, p + OP2);
+        code.istore(TMP).iload(TMP).pushInt(next);
+        int same = code.jump(IF_ICMPEQ);
+        code.iload(TMP).istore(PC);
+        sideExit(code, exits, -1, k + 1);
+        code.bindJump(same);
+        continue;
+      }
+      int target = c[p + TARGET];
+      if (op == DecodedProgram.QBNEVER || op == DecodedProgram.QBA || target == pc + 1) {
+        continue;
+      }
+      int condition = branchCondition(code, c, p);
+      boolean taken = next == target;
+      int same = code.jump(taken ? condition : negate(condition));
+      sideExit(code, exits, taken ? pc + 1 : target, k + 1);
+      code.bindJump(same);
+    }
+    code.iload(CYCLES).pushInt(length).op(IADD).istore(CYCLES)
+        .jumpTo(GOTO, loop);
+
+    for (int exit : exits) {
+      code.bindJump(exit);
+    }
+    usage.store(code);
+    code.aload(CARRY_BOX).pushInt(1).iload(CYCLES).op(IASTORE)
+        .iload(PC).op(IRETURN);
+  }
+
+  /**
+   * Leaves the trace with given program counter.
+   *
+   * @param pc program counter to continue with, or -1 if it is already stored to {@link #PC}
+   * @param cycles number of cycles executed in the current iteration
+   */
+  private static void sideExit(ClassWriter.Code code, List<Integer> exits, int pc, int cycles) {
+    if (pc != -1) {
+      code.pushInt(pc).istore(PC);
+    }
+    if (cycles != 0) {
+      code.iload(CYCLES).pushInt(cycles).op(IADD).istore(CYCLES);
+    }
+    exits.add(code.jump(GOTO));
+  }
+
+  private static boolean writesDst(int op) {
+    return op <= DecodedProgram.LDI || op == DecodedProgram.JAL || op == DecodedProgram.LMBD;
+  }
+
+  private void generateStraight(ClassWriter.Code code, int[] c, int p) {
+    int op = c[p + OP];
+    switch (op) {
+      case DecodedProgram.ADD:
+        // carry = compareUnsigned(res, op2) >>> 31
+        readOperand(code, c, p + OP2);
+        code.istore(TMP);
+        readRegister(code, c, p + SRC);
+        code.iload(TMP).op(IADD);
+        mask(code, c[p + DST_MASK]);
+        code.op(DUP).iload(TMP)
+            .invoke(INVOKESTATIC, "java/lang/Integer", "compareUnsigned", "(II)I")
+            .pushInt(31).op(IUSHR).istore(CARRY);
+        break;
+      case DecodedProgram.ADC:
+        // carry = (compareUnsigned(res, op2) - carry) >>> 31
+        readOperand(code, c, p + OP2);
+        code.istore(TMP);
+        readRegister(code, c, p + SRC);
+        code.iload(TMP).op(IADD).iload(CARRY).op(IADD);
+        mask(code, c[p + DST_MASK]);
+        code.op(DUP).iload(TMP)
+            .invoke(INVOKESTATIC, "java/lang/Integer", "compareUnsigned", "(II)I")
+            .iload(CARRY).op(ISUB)
+            .pushInt(31).op(IUSHR).istore(CARRY);
+        break;
+      case DecodedProgram.SUB:
+      case DecodedProgram.SUC:
+        readRegister(code, c, p + SRC);
+        code.invoke(INVOKESTATIC, "java/lang/Integer", "toUnsignedLong", "(I)J");
+        readOperand(code, c, p + OP2);
+        code.op(I2L).op(LSUB);
+        borrow(code, op == DecodedProgram.SUC);
+        break;
+      case DecodedProgram.RSB:
+      case DecodedProgram.RSC:
+        readOperand(code, c, p + OP2);
+        code.op(I2L);
+        readRegister(code, c, p + SRC);
+        code.invoke(INVOKESTATIC, "java/lang/Integer", "toUnsignedLong", "(I)J");
+        code.op(LSUB);
+        borrow(code, op == DecodedProgram.RSC);
+        break;
+      case DecodedProgram.LSL:
+        binary(code, c, p, ISHL);
+        break;
+      case DecodedProgram.LSR:
+        binary(code, c, p, IUSHR);
+        break;
+      case DecodedProgram.AND:
+        binary(code, c, p, IAND);
+        break;
+      case DecodedProgram.OR:
+        binary(code, c, p, IOR);
+        break;
+      case DecodedProgram.XOR:
+        binary(code, c, p, IXOR);
+        break;
+      case DecodedProgram.NOT:
+        readRegister(code, c, p + SRC);
+        code.pushInt(-1).op(IXOR);
+        break;
+      case DecodedProgram.MIN:
+      case DecodedProgram.MAX:
+        readRegister(code, c, p + SRC);
+        readOperand(code, c, p + OP2);
+        code.invoke(INVOKESTATIC, "java/lang/Math",
+            op == DecodedProgram.MIN ? "min" : "max", "(II)I");
+        break;
+      case DecodedProgram.CLR:
+        readRegister(code, c, p + SRC);
+        code.pushInt(1);
+        readOperand(code, c, p + OP2);
+        code.op(ISHL).pushInt(-1).op(IXOR).op(IAND);
+        break;
+      case DecodedProgram.SET:
+        readRegister(code, c, p + SRC);
+        code.pushInt(1);
+        readOperand(code, c, p + OP2);
+        code.op(ISHL).op(IOR);
+        break;
+      case DecodedProgram.LDI:
+        code.pushInt(c[p + OP2_IMM]);
+        break;
+      case DecodedProgram.LMBD:
+        readRegister(code, c, p + SRC);
+        if (c[p + OP2_MASK] == 0) {
+          if ((c[p + OP2_IMM] & 1) == 0) {
+            code.pushInt(c[p + SRC_MASK]).op(IXOR);
+          }
+        } else {
+          // src ^= srcMask & ((op2 & 1) - 1)
+          code.pushInt(c[p + SRC_MASK]);
+          readOperand(code, c, p + OP2);
+          code.pushInt(1).op(IAND).pushInt(1).op(ISUB).op(IAND).op(IXOR);
+        }
+        // res = 31 - nlz(src), or 32 when src == 0
+        code.invoke(INVOKESTATIC, "java/lang/Integer", "numberOfLeadingZeros", "(I)I")
+            .istore(TMP)
+            .pushInt(31).iload(TMP).op(ISUB)
+            .iload(TMP).pushInt(5).op(IUSHR).pushInt(33).op(IMUL).op(IADD);
+        break;
+      default:
+        throw new IllegalStateException("Unexpected operation " + op + " in a block");
+    }
+    writeDst(code, c, p);
+  }
+
+  /**
+   * Converts {@code long} result on the stack to {@code int}, and computes carry as
+   * {@code result < 0}.
+   */
+  private static void borrow(ClassWriter.Code code, boolean withCarry) {
+    if (withCarry) {
+      code.iload(CARRY).op(I2L).op(LSUB);
+    }
+    code.op(DUP2).op(LCONST_0).op(LCMP).pushInt(31).op(IUSHR).istore(CARRY)
+        .op(L2I);
+  }
+
+  private void binary(ClassWriter.Code code, int[] c, int p, int opcode) {
+    readRegister(code, c, p + SRC);
+    readOperand(code, c, p + OP2);
+    code.op(opcode);
+  }
+
+  private void generateJump(ClassWriter.Code code, int[] c, int pc) {
+    int p = pc * STRIDE;
+    int op = c[p + OP];
+    int target = c[p + TARGET];
+    switch (op) {
+      case DecodedProgram.JMP:
+      case DecodedProgram.JAL:
+        readOperand(code, c, p + OP2);
+        code.op(IRETURN);
+        return;
+      case DecodedProgram.QBNEVER:
+        code.pushInt(pc + 1).op(IRETURN);
+        return;
+      case DecodedProgram.QBA:
+        code.pushInt(target).op(IRETURN);
+        return;
+      default:
+    }
+    int taken = code.jump(branchCondition(code, c, p));
+    code.pushInt(pc + 1).op(IRETURN);
+    code.bindJump(taken);
+    code.pushInt(target).op(IRETURN);
+  }
+
+  /**
+   * Pushes operands of a conditional quick branch.
+   *
+   * @return the opcode that jumps when the branch is taken
+   */
+  private static int branchCondition(ClassWriter.Code code, int[] c, int p) {
+    int op = c[p + OP];
+    switch (op) {
+      case DecodedProgram.QBEQ:
+      case DecodedProgram.QBNE:
+        readOperand(code, c, p + OP2);
+        readRegister(code, c, p + SRC);
+        return op == DecodedProgram.QBEQ ? IF_ICMPEQ : IF_ICMPNE;
+      case DecodedProgram.QBBS:
+      case DecodedProgram.QBBC:
+        readRegister(code, c, p + SRC);
+        code.pushInt(1);
+        readOperand(code, c, p + OP2);
+        code.op(ISHL).op(IAND);
+        return op == DecodedProgram.QBBS ? IFNE : IFEQ;
+      default:
+        readOperand(code, c, p + OP2);
+        readRegister(code, c, p + SRC);
+        code.invoke(INVOKESTATIC, "java/lang/Integer", "compareUnsigned", "(II)I");
+        return op == DecodedProgram.QBLT ? IFLT
+            : op == DecodedProgram.QBLE ? IFLE
+            : op == DecodedProgram.QBGT ? IFGT
+            : IFGE;
+    }
+  }
+
+  /**
+   * Returns the opposite conditional jump: IFEQ..IF_ICMPNE come in pairs of opposite conditions.
+   */
+  private static int negate(int condition) {
+    return ((condition - IFEQ) ^ 1) + IFEQ;
+  }
+
+  private static void readRegister(ClassWriter.Code code, int[] c, int offset) {
+    int mask = c[offset + 2];
+    if (mask == 0) {
+      code.pushInt(0);
+      return;
+    }
+    code.iload(REG_BASE + c[offset]);
+    int shift = c[offset + 1];
+    if (shift != 0) {
+      code.pushInt(shift).op(IUSHR);
+    }
+    mask(code, mask);
+  }
+
+  private static void readOperand(ClassWriter.Code code, int[] c, int offset) {
+    if (c[offset + 2] == 0) {
+      code.pushInt(c[offset + 3]);
+      return;
+    }
+    readRegister(code, c, offset);
+  }
+
+  private static void mask(ClassWriter.Code code, int mask) {
+    if (mask != -1) {
+      code.pushInt(mask).op(IAND);
+    }
+  }
+
+  /**
+   * Stores the value on the stack to the destination register of the instruction.
+   */
+  private static void writeDst(ClassWriter.Code code, int[] c, int p) {
+    int local = REG_BASE + c[p + DST];
+    int shift = c[p + DST_SHIFT];
+    int mask = c[p + DST_MASK];
+    if (mask != -1) {
+      mask(code, mask);
+      if (shift != 0) {
+        code.pushInt(shift).op(ISHL);
+      }
+      code.iload(local).pushInt(~(mask << shift)).op(IAND).op(IOR);
+    }
+    code.istore(local);
+  }
+
+  /**
+   * Registers and carry that are kept in local variables of the generated method.
+   */
+  private static final class RegisterUsage {
+    final boolean[] used = new boolean[32];
+    final boolean[] written = new boolean[32];
+    boolean readsCarry;
+    boolean writesCarry;
+
+    void add(int[] c, int p) {
+      int op = c[p + OP];
+      if (writesDst(op)) {
+        used[c[p + DST]] = true;
+        written[c[p + DST]] = true;
+      }
+      if (c[p + SRC_MASK] != 0) {
+        used[c[p + SRC]] = true;
+      }
+      if (c[p + OP2_MASK] != 0) {
+        used[c[p + OP2]] = true;
+      }
+      readsCarry |= op == DecodedProgram.ADC || op == DecodedProgram.SUC
+          || op == DecodedProgram.RSC;
+      writesCarry |= op <= DecodedProgram.RSC
+          && op != DecodedProgram.LSL && op != DecodedProgram.LSR;
+    }
+
+    void load(ClassWriter.Code code, boolean loadCarry) {
+      for (int reg = 0; reg < 32; reg++) {
+        if (used[reg]) {
+          code.aload(REGISTERS).pushInt(reg).op(IALOAD).istore(REG_BASE + reg);
+        }
+      }
+      if (loadCarry) {
+        code.aload(CARRY_BOX).pushInt(0).op(IALOAD).istore(CARRY);
+      }
+    }
+
+    void store(ClassWriter.Code code) {
+      for (int reg = 0; reg < 32; reg++) {
+        if (written[reg]) {
+          code.aload(REGISTERS).pushInt(reg).iload(REG_BASE + reg).op(IASTORE);
+        }
+      }
+      if (writesCarry) {
+        code.aload(CARRY_BOX).pushInt(0).iload(CARRY).op(IASTORE);
+      }
+    }
+  }
+
+  private static final class BlockClassLoader extends ClassLoader {
+    BlockClassLoader() {
+      super(CompiledBlock.class.getClassLoader());
+    }
+
+    Class<?> define(String name, byte[] bytes) {
+      return defineClass(name, bytes, 0, bytes.length);
+    }
+  }
+}
@@ -0,0 +1,154 @@
+package com.github.vlsi.pru.plc110;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Binary checkpoint file of {@link PruSnapshot}, so long simulations can be resumed and
+ * warmed-up states can be shared between processes.
+ * <p>The file is little-endian: magic, {@link #VERSION}, {@link Program#getHash() program hash},
+ * address space size and page size, pc, carry, cycle counters, memory transfer state, 32 registers,
+ * control registers of the core, then the bitmap of non-zero RAM pages followed by the contents
+ * of those pages only.
+ */
+public final class Checkpoint {
+  static final int MAGIC = 0x53555250; // "PRUS"
+  static final int VERSION = 1;
+  private static final int CONTROL_REGISTERS = ControlRegisters.COUNT;
+  private static final int HEADER_SIZE =
+      4 + 4 + 8 + 4 + 4 + 6 * 4 + 32 * 4 + CONTROL_REGISTERS * 4;
+
+  private Checkpoint() {
+  }
+
+  /**
+   * Writes the snapshot of a cpu that runs given program.
+   */
+  public static void write(Path file, Program program, PruSnapshot snapshot) throws IOException {
+    DataMemory memory = snapshot.memory;
+    int pageCount = memory.pageCount();
+    long[] nonZero = new long[(pageCount + 63) >> 6];
+    int nonZeroCount = 0;
+    for (int i = 0; i < pageCount; i++) {
+      if (memory.isRam(i) && !isZero(memory.page(i))) {
+        nonZero[i >> 6] |= 1L << i;
+        nonZeroCount++;
+      }
+    }
+    ByteBuffer bb = ByteBuffer.allocate(
+        HEADER_SIZE + nonZero.length * 8 + nonZeroCount * DataMemory.PAGE_SIZE)
+        .order(ByteOrder.LITTLE_ENDIAN);
+    bb.putInt(MAGIC).putInt(VERSION).putLong(program.getHash());
+    bb.putInt(memory.size()).putInt(DataMemory.PAGE_SIZE);
+    bb.putInt(snapshot.pc).putInt(snapshot.carry);
+    bb.putInt(snapshot.cycleCount).putInt(snapshot.cycleCountNonReset);
+    bb.putInt(snapshot.memoryTransferCyclesLeft).putInt(snapshot.memoryTransferStarted);
+    for (int reg : snapshot.registers) {
+      bb.putInt(reg);
+    }
+    for (int reg : snapshot.controlRegisters) {
+      bb.putInt(reg);
+    }
+    for (long bits : nonZero) {
+      bb.putLong(bits);
+    }
+    for (int i = 0; i < pageCount; i++) {
+      if ((nonZero[i >> 6] & 1L << i) != 0) {
+        bb.put(memory.page(i));
+      }
+    }
+    bb.flip();
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      while (bb.hasRemaining()) {
+        channel.write(bb);
+      }
+    }
+  }
+
+  /**
+   * Reads the snapshot. The file is memory-mapped, and the RAM pages are copied straight
+   * from the mapping.
+   *
+   * @throws IllegalArgumentException if the checkpoint was written for a different program
+   * @throws IOException if the file is not a valid checkpoint
+   */
+  public static PruSnapshot read(Path file, Program program) throws IOException {
+    ByteBuffer bb;
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      bb = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+          .order(ByteOrder.LITTLE_ENDIAN);
+    }
+    try {
+      int magic = bb.getInt();
+      int version = bb.getInt();
+      if (magic != MAGIC || version != VERSION) {
+        throw new IOException("Unsupported checkpoint " + file + ": magic "
+            + Integer.toHexString(magic) + ", version " + version);
+      }
+      long hash = bb.getLong();
+      if (hash != program.getHash()) {
+        throw new IllegalArgumentException("Checkpoint " + file + " was written for program "
+            + Long.toHexString(hash) + ", but the program is "
+            + Long.toHexString(program.getHash()));
+      }
+      DataMemory memory = new DataMemory();
+      int size = bb.getInt();
+      int pageSize = bb.getInt();
+      if (pageSize != DataMemory.PAGE_SIZE || size != memory.size()) {
+        throw new IOException("Unsupported RAM layout in checkpoint " + file + ": size " + size
+            + ", page size " + pageSize);
+      }
+      int pc = bb.getInt();
+      int carry = bb.getInt();
+      int cycleCount = bb.getInt();
+      int cycleCountNonReset = bb.getInt();
+      int memoryTransferCyclesLeft = bb.getInt();
+      int memoryTransferStarted = bb.getInt();
+      int[] registers = new int[32];
+      for (int i = 0; i < registers.length; i++) {
+        registers[i] = bb.getInt();
+      }
+      int[] controlRegisters = new int[CONTROL_REGISTERS];
+      for (int i = 0; i < controlRegisters.length; i++) {
+        controlRegisters[i] = bb.getInt();
+      }
+      int pageCount = memory.pageCount();
+      long[] nonZero = new long[(pageCount + 63) >> 6];
+      for (int i = 0; i < nonZero.length; i++) {
+        nonZero[i] = bb.getLong();
+      }
+      for (int i = 0; i < pageCount; i++) {
+        if ((nonZero[i >> 6] & 1L << i) == 0) {
+          continue;
+        }
+        if (!memory.isRam(i)) {
+          throw new IOException("Checkpoint " + file + " has data for page "
+              + (i << DataMemory.PAGE_BITS) + " that is not RAM");
+        }
+        if (bb.remaining() < DataMemory.PAGE_SIZE) {
+          throw new BufferUnderflowException();
+        }
+        memory.load(i, bb);
+      }
+      return new PruSnapshot(registers, memory, controlRegisters, pc, carry, cycleCount,
+          cycleCountNonReset, memoryTransferCyclesLeft, memoryTransferStarted);
+    } catch (BufferUnderflowException e) {
+      throw new IOException("Checkpoint " + file + " is truncated", e);
+    }
+  }
+
+  private static boolean isZero(ByteBuffer page) {
+    while (page.hasRemaining()) {
+      if (page.get() != 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
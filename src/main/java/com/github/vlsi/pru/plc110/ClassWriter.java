@@ -0,0 +1,281 @@
+package com.github.vlsi.pru.plc110;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Minimal class file writer for the classes generated by {@link BlockCompiler}.
+ * Class file version 49 is used, so no stack map frames are required.
+ */
+final class ClassWriter {
+  static final int ACC_PUBLIC = 0x0001;
+  static final int ACC_FINAL = 0x0010;
+  static final int ACC_SUPER = 0x0020;
+
+  // Opcodes
+  static final int ICONST_0 = 3;
+  static final int LCONST_0 = 9;
+  static final int BIPUSH = 16;
+  static final int SIPUSH = 17;
+  static final int LDC = 18;
+  static final int LDC_W = 19;
+  static final int ILOAD = 21;
+  static final int ALOAD = 25;
+  static final int IALOAD = 46;
+  static final int ISTORE = 54;
+  static final int IASTORE = 79;
+  static final int POP = 87;
+  static final int DUP = 89;
+  static final int DUP2 = 92;
+  static final int IADD = 96;
+  static final int ISUB = 100;
+  static final int LSUB = 101;
+  static final int IMUL = 104;
+  static final int ISHL = 120;
+  static final int IUSHR = 124;
+  static final int IAND = 126;
+  static final int IOR = 128;
+  static final int IXOR = 130;
+  static final int I2L = 133;
+  static final int L2I = 136;
+  static final int LCMP = 148;
+  static final int IFEQ = 153;
+  static final int IFNE = 154;
+  static final int IFLT = 155;
+  static final int IFGE = 156;
+  static final int IFGT = 157;
+  static final int IFLE = 158;
+  static final int IF_ICMPEQ = 159;
+  static final int IF_ICMPNE = 160;
+  static final int IF_ICMPLT = 161;
+  static final int IF_ICMPGE = 162;
+  static final int GOTO = 167;
+  static final int IRETURN = 172;
+  static final int RETURN = 177;
+  static final int INVOKEVIRTUAL = 182;
+  static final int INVOKESPECIAL = 183;
+  static final int INVOKESTATIC = 184;
+
+  private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+  private final DataOutputStream pool = new DataOutputStream(poolBytes);
+  private final Map<String, Integer> poolIndex = new HashMap<>();
+  private int poolCount = 1;
+
+  private final ByteArrayOutputStream methodBytes = new ByteArrayOutputStream();
+  private final DataOutputStream methods = new DataOutputStream(methodBytes);
+  private int methodCount;
+
+  final String name;
+  private final int thisClass;
+  private final int superClass;
+
+  ClassWriter(String name, String superName) {
+    this.name = name;
+    thisClass = classRef(name);
+    superClass = classRef(superName);
+  }
+
+  private int constant(String key, ConstantWriter writer) {
+    Integer index = poolIndex.get(key);
+    if (index != null) {
+      return index;
+    }
+    try {
+      writer.write(pool);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    int result = poolCount;
+    poolCount++;
+    poolIndex.put(key, result);
+    return result;
+  }
+
+  int utf8(String value) {
+    return constant("U" + value, out -> {
+      out.writeByte(1);
+      out.writeUTF(value);
+    });
+  }
+
+  int classRef(String internalName) {
+    int name = utf8(internalName);
+    return constant("C" + internalName, out -> {
+      out.writeByte(7);
+      out.writeShort(name);
+    });
+  }
+
+  int integer(int value) {
+    return constant("I" + value, out -> {
+      out.writeByte(3);
+      out.writeInt(value);
+    });
+  }
+
+  int methodRef(String owner, String name, String descriptor) {
+    int ownerIndex = classRef(owner);
+    int nameIndex = utf8(name);
+    int descriptorIndex = utf8(descriptor);
+    int nameAndType = constant("T" + name + descriptor, out -> {
+      out.writeByte(12);
+      out.writeShort(nameIndex);
+      out.writeShort(descriptorIndex);
+    });
+    return constant("M" + owner + "." + name + descriptor, out -> {
+      out.writeByte(10);
+      out.writeShort(ownerIndex);
+      out.writeShort(nameAndType);
+    });
+  }
+
+  void addMethod(int access, String name, String descriptor, Code code) {
+    int nameIndex = utf8(name);
+    int descriptorIndex = utf8(descriptor);
+    int codeAttribute = utf8("Code");
+    try {
+      methods.writeShort(access);
+      methods.writeShort(nameIndex);
+      methods.writeShort(descriptorIndex);
+      methods.writeShort(1); // attributes_count
+      methods.writeShort(codeAttribute);
+      methods.writeInt(2 + 2 + 4 + code.length + 2 + 2);
+      methods.writeShort(code.maxStack);
+      methods.writeShort(code.maxLocals);
+      methods.writeInt(code.length);
+      methods.write(code.bytes, 0, code.length);
+      methods.writeShort(0); // exception_table_length
+      methods.writeShort(0); // attributes_count
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    methodCount++;
+  }
+
+  byte[] toByteArray() {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    try {
+      out.writeInt(0xCAFEBABE);
+      out.writeShort(0); // minor_version
+      out.writeShort(49); // major_version, Java 5
+      out.writeShort(poolCount);
+      poolBytes.writeTo(out);
+      out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+      out.writeShort(thisClass);
+      out.writeShort(superClass);
+      out.writeShort(0); // interfaces_count
+      out.writeShort(0); // fields_count
+      out.writeShort(methodCount);
+      methodBytes.writeTo(out);
+      out.writeShort(0); // attributes_count
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return bytes.toByteArray();
+  }
+
+  private interface ConstantWriter {
+    void write(DataOutputStream out) throws IOException;
+  }
+
+  /**
+   * Bytecode of a single method.
+   */
+  final class Code {
+    private byte[] bytes = new byte[256];
+    private int length;
+    final int maxStack;
+    final int maxLocals;
+
+    Code(int maxStack, int maxLocals) {
+      this.maxStack = maxStack;
+      this.maxLocals = maxLocals;
+    }
+
+    Code op(int opcode) {
+      return u1(opcode);
+    }
+
+    private Code u1(int value) {
+      if (length == bytes.length) {
+        bytes = Arrays.copyOf(bytes, length * 2);
+      }
+      bytes[length++] = (byte) value;
+      return this;
+    }
+
+    private Code u2(int value) {
+      return u1(value >> 8).u1(value);
+    }
+
+    Code pushInt(int value) {
+      if (value >= -1 && value <= 5) {
+        return op(ICONST_0 + value);
+      }
+      if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+        return op(BIPUSH).u1(value);
+      }
+      if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+        return op(SIPUSH).u2(value);
+      }
+      int index = integer(value);
+      if (index < 256) {
+        return op(LDC).u1(index);
+      }
+      return op(LDC_W).u2(index);
+    }
+
+    Code iload(int local) {
+      return op(ILOAD).u1(local);
+    }
+
+    Code istore(int local) {
+      return op(ISTORE).u1(local);
+    }
+
+    Code aload(int local) {
+      return op(ALOAD).u1(local);
+    }
+
+    Code invoke(int opcode, String owner, String name, String descriptor) {
+      return op(opcode).u2(methodRef(owner, name, descriptor));
+    }
+
+    int position() {
+      return length;
+    }
+
+    /**
+     * Emits a jump to already generated code.
+     * @param target position returned by {@link #position()}
+     */
+    Code jumpTo(int opcode, int target) {
+      return op(opcode).u2(target - (length - 1));
+    }
+
+    /**
+     * Emits a jump with unresolved offset.
+     * @return position to be passed to {@link #bindJump(int)}
+     */
+    int jump(int opcode) {
+      int position = length;
+      op(opcode).u2(0);
+      return position;
+    }
+
+    /**
+     * Sets the target of the given jump to the current position.
+     */
+    void bindJump(int jumpPosition) {
+      int offset = length - jumpPosition;
+      bytes[jumpPosition + 1] = (byte) (offset >> 8);
+      bytes[jumpPosition + 2] = (byte) offset;
+    }
+  }
+}
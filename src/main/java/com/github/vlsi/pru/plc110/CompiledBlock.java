@@ -0,0 +1,31 @@
+package com.github.vlsi.pru.plc110;
+
+/**
+ * Straight-line sequence of instructions translated to JVM bytecode.
+ * Subclasses are generated by {@link ExecutionMode#COMPILED} engine at runtime, so the class
+ * has to be public.
+ */
+public abstract class CompiledBlock {
+  /**
+   * Program counter of the first instruction of the block.
+   */
+  public final int start;
+  /**
+   * Number of instructions in the block, each instruction takes one cycle.
+   */
+  public final int length;
+
+  protected CompiledBlock(int start, int length) {
+    this.start = start;
+    this.length = length;
+  }
+
+  /**
+   * Executes the block.
+   *
+   * @param registers register file
+   * @param carry {@code carry[0]} is carry flag
+   * @return program counter of the next instruction
+   */
+  public abstract int execute(int[] registers, int[] carry);
+}
@@ -0,0 +1,32 @@
+package com.github.vlsi.pru.plc110;
+
+/**
+ * Hot loop that was recorded and translated to JVM bytecode by {@link TraceCompiler}.
+ * Subclasses are generated at runtime, so the class has to be public.
+ */
+public abstract class CompiledTrace {
+  /**
+   * Program counter of the loop head.
+   */
+  public final int head;
+  /**
+   * Number of instructions in a single iteration of the recorded path.
+   */
+  public final int length;
+
+  protected CompiledTrace(int head, int length) {
+    this.head = head;
+    this.length = length;
+  }
+
+  /**
+   * Executes loop iterations while the whole iteration fits into the cycle budget, or till
+   * the execution deviates from the recorded path.
+   *
+   * @param registers register file
+   * @param state {@code state[0]} is carry flag, {@code state[1]} is cycle budget on input,
+   *              and the number of executed cycles on output
+   * @return program counter of the next instruction
+   */
+  public abstract int execute(int[] registers, int[] state);
+}
@@ -0,0 +1,144 @@
+package com.github.vlsi.pru.plc110;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Control registers of a PRU core. CYCLE and STATUS are not updated as the core runs:
+ * they are sampled from the core when a transfer starts, and a write of CYCLE or CONTROL
+ * is applied to the core when the transfer ends. A write of CYCLE restarts the counter only if
+ * the value differs from the sampled one. STALL is incremented once per memory
+ * transfer.
+ * <p>The counters run while CONTROL.COUNTER_ENABLE is set. The emulator starts with the
+ * counter enabled, so the firmware that relies on the loader to enable it keeps working.
+ * <p>Only the registers below {@code 0x30} are stored: the rest of the block is reserved,
+ * so it reads as zero and ignores writes.
+ */
+final class ControlRegisters implements MmioDevice {
+  static final int CONTROL = 0x0;
+  static final int STATUS = 0x4;
+  static final int CYCLE = 0xC;
+  static final int STALL = 0x10;
+  // CONTROL..CTPPR1
+  static final int COUNT = 12;
+
+  static final int SOFT_RST_N = 1;
+  static final int ENABLE = 1 << 1;
+  static final int COUNTER_ENABLE = 1 << 3;
+  static final int RESET_CONTROL = SOFT_RST_N | ENABLE | COUNTER_ENABLE;
+
+  private final Pru cpu;
+  // Register values, CYCLE holds the counter when it is disabled
+  final int[] values = new int[COUNT];
+  private boolean counting;
+  private int sampledCycle;
+  private boolean cycleWritten;
+
+  ControlRegisters(Pru cpu) {
+    this.cpu = cpu;
+    reset();
+  }
+
+  void reset() {
+    Arrays.fill(values, 0);
+    values[CONTROL >> 2] = RESET_CONTROL;
+  }
+
+  /**
+   * Copies register values, for instance, from a snapshot.
+   */
+  void load(int[] values) {
+    System.arraycopy(values, 0, this.values, 0, this.values.length);
+  }
+
+  /**
+   * Returns register values with the counters of the running core.
+   */
+  int[] save() {
+    int[] res = values.clone();
+    if (isCounting()) {
+      res[CYCLE >> 2] = cpu.cycleCount;
+    }
+    return res;
+  }
+
+  /**
+   * Copies the stored registers to given buffer at given address, so {@link Pru#ram()} shows
+   * their values.
+   */
+  void copyTo(ByteBuffer buffer, int address) {
+    for (int i = 0; i < COUNT * 4; i++) {
+      buffer.put(address + i, read(i));
+    }
+  }
+
+  long footprint() {
+    // Two references, an int and two booleans
+    return DataMemory.objectSize(2 * DataMemory.REFERENCE_SIZE + 4 + 2)
+        + DataMemory.arraySize(COUNT, 4);
+  }
+
+  private boolean isCounting() {
+    return (values[CONTROL >> 2] & COUNTER_ENABLE) != 0;
+  }
+
+  /**
+   * Accounts the cycles the core waited for a memory transfer.
+   */
+  void stall(int cycles) {
+    if (isCounting()) {
+      values[STALL >> 2] += cycles;
+    }
+  }
+
+  @Override
+  public void beginTransfer() {
+    counting = isCounting();
+    if (counting) {
+      values[CYCLE >> 2] = cpu.cycleRegister();
+    }
+    sampledCycle = values[CYCLE >> 2];
+    values[STATUS >> 2] = cpu.pc;
+  }
+
+  @Override
+  public void endTransfer() {
+    boolean enabled = isCounting();
+    if (counting && enabled) {
+      if (cycleWritten && values[CYCLE >> 2] != sampledCycle) {
+        // The counter keeps running after the write. Writing back the sampled value, for
+        // instance, by a read-modify-write burst, leaves the counter intact
+        cpu.cycleCount = values[CYCLE >> 2] + 1;
+      }
+    } else if (counting) {
+      // Counter is disabled, so it keeps the value till it is enabled again
+      if (!cycleWritten) {
+        values[CYCLE >> 2] = cpu.cycleCount;
+      }
+    } else if (enabled) {
+      cpu.cycleCount = values[CYCLE >> 2];
+    }
+    cycleWritten = false;
+  }
+
+  @Override
+  public byte read(int offset) {
+    if (offset >= COUNT * 4) {
+      return 0;
+    }
+    return (byte) (values[offset >> 2] >>> ((offset & 3) << 3));
+  }
+
+  @Override
+  public void write(int offset, byte value) {
+    int reg = offset >> 2;
+    if (reg == STATUS >> 2 || reg >= COUNT) {
+      return;
+    }
+    int shift = (offset & 3) << 3;
+    values[reg] = values[reg] & ~(0xff << shift) | (value & 0xff) << shift;
+    if (reg == CYCLE >> 2) {
+      cycleWritten = true;
+    }
+  }
+}
@@ -0,0 +1,135 @@
+package com.github.vlsi.pru.plc110;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs the cores of {@link PruSubsystem} on separate threads with conservative
+ * synchronization, so the memory transfers are performed in the order of the cycle-by-cycle
+ * interleaving of {@link PruSubsystem#run(int)}. Accesses to the control registers of the other
+ * core are rejected, see {@link PruSubsystem#runParallel(int, int)} for the supported programs.
+ * <p>Each core runs up to {@code lookahead} cycles at a time and then publishes the number of
+ * completed cycles. Register-only instructions never wait. A memory transfer of PRU0 in cycle
+ * {@code t} waits till PRU1 completes cycle {@code t - 1}, and a transfer of PRU1 waits till PRU0
+ * completes cycle {@code t}, which is the order of the serial interleaving. A core that waits
+ * publishes its progress first, so the cores cannot wait for each other.
+ */
+final class CoreSync {
+  private final Pru[] cores;
+  private final int[] start;
+  private final int cycles;
+  private final int lookahead;
+  // Cycles completed by each core, Long.MAX_VALUE once the core halted
+  private volatile long done0;
+  private volatile long done1;
+  private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+  CoreSync(Pru pru0, Pru pru1, int cycles, int lookahead) {
+    this.cores = new Pru[]{pru0, pru1};
+    this.start = new int[]{pru0.cycleCountNonReset, pru1.cycleCountNonReset};
+    this.cycles = cycles;
+    this.lookahead = lookahead;
+  }
+
+  void run() {
+    for (Pru cpu : cores) {
+      cpu.sync = this;
+    }
+    Thread thread = new Thread(() -> runCore(1), "PRU1");
+    thread.start();
+    try {
+      runCore(0);
+    } finally {
+      boolean interrupted = false;
+      while (true) {
+        try {
+          thread.join();
+          break;
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+      for (Pru cpu : cores) {
+        cpu.sync = null;
+      }
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    Throwable e = failure.get();
+    if (e instanceof RuntimeException) {
+      throw (RuntimeException) e;
+    }
+    if (e instanceof Error) {
+      throw (Error) e;
+    }
+    if (e != null) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private void runCore(int cpuId) {
+    Pru cpu = cores[cpuId];
+    try {
+      int left = cycles;
+      while (left > 0) {
+        int chunk = Math.min(left, lookahead);
+        int executed = cpu.runOrHalt(chunk);
+        left -= executed;
+        if (executed < chunk) {
+          publish(cpuId, Long.MAX_VALUE);
+          return;
+        }
+        publish(cpuId, cycles - left);
+      }
+    } catch (Throwable e) {
+      failure.compareAndSet(null, e);
+      // Let the other core stop waiting
+      publish(cpuId, Long.MAX_VALUE);
+    }
+  }
+
+  /**
+   * Waits till the other core completes the cycles that precede the transfer in
+   * the serial interleaving.
+   */
+  void beforeTransfer(Pru cpu, int address, int length) {
+    int cpuId = cpu.cpuId;
+    int other = 1 - cpuId;
+    int otherControl =
+        other == 0 ? DataMemory.PRU0_CONTROL_REGISTERS : DataMemory.PRU1_CONTROL_REGISTERS;
+    if (address < otherControl + DataMemory.CONTROL_REGISTERS_SIZE
+        && otherControl < address + length) {
+      throw new IllegalStateException("Pru " + cpuId + " accesses control registers of Pru "
+          + other + " at " + Integer.toHexString(address) + ", that needs both cores stopped"
+          + " at the same cycle, so use PruSubsystem.run instead of runParallel");
+    }
+    long t = cpu.cycleCountNonReset - start[cpuId];
+    long required = cpuId == 0 ? t - 1 : t;
+    if (done(other) >= required) {
+      return;
+    }
+    publish(cpuId, t - 1);
+    int spins = 0;
+    while (done(other) < required) {
+      if (failure.get() != null) {
+        throw new CancellationException("Pru " + other + " failed");
+      }
+      if (++spins > 100) {
+        Thread.yield();
+      }
+    }
+  }
+
+  private long done(int cpuId) {
+    return cpuId == 0 ? done0 : done1;
+  }
+
+  private void publish(int cpuId, long value) {
+    if (cpuId == 0) {
+      done0 = value;
+    } else {
+      done1 = value;
+    }
+  }
+}
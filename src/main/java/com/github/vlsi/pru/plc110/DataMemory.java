@@ -0,0 +1,586 @@
+package com.github.vlsi.pru.plc110;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Data address space of {@link Pru}. The address space is split into pages of
+ * {@link #PAGE_SIZE} bytes, and the page table maps each page to RAM, to an {@link MmioDevice},
+ * or leaves it unmapped:
+ * <pre>
+ *   0x00000..0x01FFF  PRU0 data RAM, 8 KB
+ *   0x02000..0x03FFF  PRU1 data RAM, 8 KB
+ *   0x07000..0x073FF  PRU0 control registers
+ *   0x07800..0x07BFF  PRU1 control registers
+ *   0x10000..0x12FFF  shared RAM, 12 KB
+ * </pre>
+ * The rest of {@code 0x0000..0x7BFF} is spare RAM: earlier versions of the emulator backed that
+ * range with a single buffer, so the programs that use it keep working. A device can be mapped
+ * over spare RAM.
+ * An {@link ExternalMemory} region can be mapped above the page table, for instance at
+ * {@link ExternalMemory#DDR}. It is accessed directly, and it is shared with forks.
+ * The control registers of the core are {@link ControlRegisters} device, and the control
+ * registers of the other core are RAM unless both cores share the memory, see
+ * {@link PruSubsystem}.
+ * <p>RAM pages are shared copy-on-write with forks, so {@link #fork()} copies only the page table,
+ * and a page is copied when either side writes it. Pages that were not written yet refer to
+ * a single page of zeros, so the RAM is allocated as the program writes it.
+ * <p>{@link #window()} exposes addresses below {@link #WINDOW_SIZE} as a single buffer, so
+ * once it is requested, those RAM pages become slices of the window and are no longer shared.
+ * {@link #shareWindow(ByteBuffer)} places the window in a buffer that another process maps too,
+ * and then each transfer is fenced, see {@link Pru#shareRam(java.nio.file.Path)}.
+ */
+final class DataMemory {
+  static final int PAGE_BITS = 8;
+  static final int PAGE_SIZE = 1 << PAGE_BITS;
+  private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+  static final int PRU0_DATA_RAM = 0x0000;
+  static final int PRU1_DATA_RAM = 0x2000;
+  static final int DATA_RAM_SIZE = 0x2000;
+  static final int PRU0_CONTROL_REGISTERS = 0x7000;
+  static final int PRU1_CONTROL_REGISTERS = 0x7800;
+  static final int CONTROL_REGISTERS_SIZE = 0x400;
+  static final int SHARED_RAM = 0x10000;
+  static final int SHARED_RAM_SIZE = 0x3000;
+  static final int SIZE = SHARED_RAM + SHARED_RAM_SIZE;
+  /**
+   * Size of the buffer returned by {@link #window()}.
+   */
+  static final int WINDOW_SIZE = 0x7bff;
+
+  private static final int PAGES = SIZE >> PAGE_BITS;
+  private static final int WINDOW_PAGES = (WINDOW_SIZE + PAGE_MASK) >> PAGE_BITS;
+  static final int WINDOW_BUFFER_SIZE = WINDOW_PAGES << PAGE_BITS;
+
+  // Layout assumed by footprint() estimates: 64-bit JVM with compressed references and
+  // compressed class pointers, so an object header is 12 bytes, an array header is 16 bytes,
+  // a reference is 4 bytes, and objects are aligned to 8 bytes
+  static final int OBJECT_HEADER = 12;
+  static final int REFERENCE_SIZE = 4;
+  // Fields of DataMemory: six references, an int and a boolean
+  private static final long INSTANCE_SIZE = objectSize(6 * REFERENCE_SIZE + 4 + 1);
+  // HeapByteBuffer: mark, position, limit, capacity and offset ints, address long, the array
+  // reference, and three booleans
+  private static final long BYTE_BUFFER_SIZE = objectSize(5 * 4 + 8 + REFERENCE_SIZE + 3);
+  private static final long PAGE_FOOTPRINT = BYTE_BUFFER_SIZE + arraySize(PAGE_SIZE, 1);
+
+  // Read-only page of zeros, shared by RAM pages that were not written yet
+  private static final ByteBuffer ZERO_PAGE =
+      newPage().asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+
+  // RAM pages, null for device and unmapped pages
+  private final ByteBuffer[] pages;
+  // Device pages, null for RAM and unmapped pages
+  private final Region[] devices;
+  // Pages that are not shared with other memories, so they can be written in place
+  private final long[] owned;
+  // Pages written since the last clear()
+  private final long[] dirty;
+  // Backing buffer of the window, non-null once the window was requested
+  private ByteBuffer window;
+  // True if the window is mapped by another process
+  private boolean shared;
+  // Fences the transfers of a shared window. A volatile field would order only the accesses
+  // of Java threads, while the other process needs the processor barriers. The fences of
+  // sun.misc.Unsafe are looked up reflectively, so the sources do not refer to internal API
+  private static final MethodHandle LOAD_FENCE = fence("loadFence");
+  private static final MethodHandle FULL_FENCE = fence("fullFence");
+  // Region above the page table, null if not mapped
+  private ByteBuffer external;
+  private int externalAddress;
+
+  DataMemory() {
+    pages = new ByteBuffer[PAGES];
+    devices = new Region[PAGES];
+    owned = new long[(PAGES + 63) >> 6];
+    dirty = new long[owned.length];
+    // Data RAM of both PRUs, spare RAM and control registers
+    mapRam(0, WINDOW_BUFFER_SIZE);
+    mapRam(SHARED_RAM, SHARED_RAM_SIZE);
+  }
+
+  private DataMemory(DataMemory parent) {
+    pages = parent.pages.clone();
+    devices = parent.devices.clone();
+    owned = new long[parent.owned.length];
+    dirty = parent.dirty.clone();
+    external = parent.external;
+    externalAddress = parent.externalAddress;
+    if (parent.window == null) {
+      // Both memories refer to the same pages now
+      Arrays.fill(parent.owned, 0);
+      return;
+    }
+    // The parent window might be modified at any time, so the window pages are copied
+    for (int i = 0; i < WINDOW_PAGES; i++) {
+      if (pages[i] != null) {
+        pages[i] = copy(pages[i]);
+        owned[i >> 6] |= 1L << i;
+        dirty[i >> 6] |= 1L << i;
+      }
+    }
+    for (int i = WINDOW_PAGES; i < PAGES; i++) {
+      parent.owned[i >> 6] &= ~(1L << i);
+    }
+  }
+
+  private static boolean isSpareRam(int page) {
+    int address = page << PAGE_BITS;
+    return address >= PRU1_DATA_RAM + DATA_RAM_SIZE && address < WINDOW_BUFFER_SIZE
+        && (address < PRU0_CONTROL_REGISTERS
+        || address >= PRU0_CONTROL_REGISTERS + CONTROL_REGISTERS_SIZE)
+        && address < PRU1_CONTROL_REGISTERS;
+  }
+
+  private void mapRam(int address, int length) {
+    for (int i = address >> PAGE_BITS; i < (address + length) >> PAGE_BITS; i++) {
+      devices[i] = null;
+      pages[i] = ZERO_PAGE;
+      owned[i >> 6] &= ~(1L << i);
+    }
+  }
+
+  private static ByteBuffer newPage() {
+    return ByteBuffer.allocate(PAGE_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  private static ByteBuffer copy(ByteBuffer page) {
+    ByteBuffer res = newPage();
+    res.put(whole(page));
+    return res;
+  }
+
+  /**
+   * Returns a view of the whole page.
+   */
+  private static ByteBuffer whole(ByteBuffer page) {
+    ByteBuffer res = page.duplicate();
+    res.clear();
+    return res;
+  }
+
+  int size() {
+    return SIZE;
+  }
+
+  int pageCount() {
+    return PAGES;
+  }
+
+  boolean isRam(int page) {
+    return pages[page] != null;
+  }
+
+  /**
+   * Returns RAM page for reading.
+   */
+  ByteBuffer page(int page) {
+    return whole(pages[page]);
+  }
+
+  /**
+   * Copies a page worth of bytes from given buffer to RAM page.
+   */
+  void load(int page, ByteBuffer src) {
+    ByteBuffer dst = whole(writablePage(page));
+    int limit = src.limit();
+    src.limit(src.position() + PAGE_SIZE);
+    dst.put(src);
+    src.limit(limit);
+  }
+
+  /**
+   * Maps a device to the region that is not mapped yet.
+   */
+  void mapDevice(int address, int length, MmioDevice device) {
+    if ((address & PAGE_MASK) != 0 || (length & PAGE_MASK) != 0 || length <= 0
+        || address < 0 || address > SIZE - length) {
+      throw new IllegalArgumentException("Device region " + address + ".." + (address + length)
+          + " must be aligned to " + PAGE_SIZE + " bytes and fit in 0.." + SIZE);
+    }
+    int first = address >> PAGE_BITS;
+    int last = (address + length) >> PAGE_BITS;
+    for (int i = first; i < last; i++) {
+      if (pages[i] != null && !isSpareRam(i) || devices[i] != null) {
+        throw new IllegalArgumentException("Device region " + address + ".." + (address + length)
+            + " overlaps with mapped page at " + (i << PAGE_BITS));
+      }
+    }
+    Region region = new Region(device, address);
+    for (int i = first; i < last; i++) {
+      pages[i] = null;
+      owned[i >> 6] &= ~(1L << i);
+      devices[i] = region;
+    }
+  }
+
+  /**
+   * Maps an external region that starts at given address, or removes the mapping if
+   * {@code memory} is null. The region must not overlap with the page table.
+   */
+  void mapExternal(int address, ExternalMemory memory) {
+    if (memory == null) {
+      external = null;
+      return;
+    }
+    long start = Integer.toUnsignedLong(address);
+    if (start < SIZE || start + memory.size() > 1L << 32) {
+      throw new IllegalArgumentException("External memory region " + Long.toHexString(start)
+          + ".." + Long.toHexString(start + memory.size()) + " must fit in "
+          + Integer.toHexString(SIZE) + "..100000000");
+    }
+    external = memory.mapping();
+    externalAddress = address;
+  }
+
+  /**
+   * Maps the control registers of the core, and makes sure the control registers of
+   * the other core do not refer to a device of another cpu.
+   */
+  void mapControlRegisters(int cpuId, ControlRegisters own) {
+    int ownAddress = cpuId == 0 ? PRU0_CONTROL_REGISTERS : PRU1_CONTROL_REGISTERS;
+    int otherAddress = cpuId == 0 ? PRU1_CONTROL_REGISTERS : PRU0_CONTROL_REGISTERS;
+    setDevice(ownAddress, CONTROL_REGISTERS_SIZE, own);
+    Region other = devices[otherAddress >> PAGE_BITS];
+    if (other != null && other.device instanceof ControlRegisters) {
+      mapRam(otherAddress, CONTROL_REGISTERS_SIZE);
+    }
+  }
+
+  /**
+   * Maps the control registers of both cores, so the cores can share the memory.
+   */
+  void mapControlRegisters(ControlRegisters pru0, ControlRegisters pru1) {
+    setDevice(PRU0_CONTROL_REGISTERS, CONTROL_REGISTERS_SIZE, pru0);
+    setDevice(PRU1_CONTROL_REGISTERS, CONTROL_REGISTERS_SIZE, pru1);
+  }
+
+  /**
+   * Maps a device over RAM or another device.
+   */
+  void setDevice(int address, int length, MmioDevice device) {
+    Region region = new Region(device, address);
+    for (int i = address >> PAGE_BITS; i < (address + length) >> PAGE_BITS; i++) {
+      pages[i] = null;
+      devices[i] = region;
+    }
+  }
+
+  /**
+   * Notifies the devices in the range that a transfer starts.
+   */
+  void beginTransfer(int address, int length) {
+    if (shared) {
+      // Acquire: the transfer sees the writes the other process made before it
+      invoke(LOAD_FENCE);
+    }
+    if (address >>> PAGE_BITS >= PAGES) {
+      return;
+    }
+    MmioDevice prev = null;
+    for (int i = address >> PAGE_BITS; i <= (address + length - 1) >> PAGE_BITS; i++) {
+      Region region = devices[i];
+      MmioDevice device = region == null ? null : region.device;
+      if (device != null && device != prev) {
+        device.beginTransfer();
+        prev = device;
+      }
+    }
+  }
+
+  /**
+   * Notifies the devices in the range that a transfer ends.
+   */
+  void endTransfer(int address, int length) {
+    if (shared) {
+      // Full fence: the writes of the transfer are visible before the following transfers
+      invoke(FULL_FENCE);
+    }
+    if (address >>> PAGE_BITS >= PAGES) {
+      return;
+    }
+    MmioDevice prev = null;
+    for (int i = address >> PAGE_BITS; i <= (address + length - 1) >> PAGE_BITS; i++) {
+      Region region = devices[i];
+      MmioDevice device = region == null ? null : region.device;
+      if (device != null && device != prev) {
+        device.endTransfer();
+        if (window != null && device instanceof ControlRegisters) {
+          ((ControlRegisters) device).copyTo(window, region.address);
+        }
+        prev = device;
+      }
+    }
+  }
+
+  /**
+   * Returns true if each address of the range is mapped to RAM, to a device, or to
+   * the external region.
+   */
+  boolean isMapped(int address, int length) {
+    if (address < 0 || length < 0 || address > SIZE - length) {
+      return external != null && length >= 0
+          && Integer.toUnsignedLong(address - externalAddress) + length <= external.capacity();
+    }
+    for (int i = address >> PAGE_BITS; i <= (address + length - 1) >> PAGE_BITS; i++) {
+      if (pages[i] == null && devices[i] == null) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Creates a copy of the memory. RAM pages are shared till either memory writes them,
+   * and devices are shared.
+   */
+  DataMemory fork() {
+    return new DataMemory(this);
+  }
+
+  /**
+   * Returns a live view of addresses below {@link #WINDOW_SIZE}. Writes to unmapped addresses
+   * are not visible to the program.
+   * <p>Devices are not part of the view, except the control registers: the view holds a copy
+   * of them that is refreshed by this method and by each transfer that accesses them.
+   * Writes to the copy are not visible to the program.
+   */
+  ByteBuffer window() {
+    if (window == null) {
+      moveToWindow(ByteBuffer.allocate(WINDOW_BUFFER_SIZE));
+    }
+    copyControlRegisters(PRU0_CONTROL_REGISTERS);
+    copyControlRegisters(PRU1_CONTROL_REGISTERS);
+    ByteBuffer res = window.duplicate();
+    res.limit(WINDOW_SIZE);
+    return res.slice().order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  private void copyControlRegisters(int address) {
+    Region region = devices[address >> PAGE_BITS];
+    if (region != null && region.device instanceof ControlRegisters) {
+      ControlRegisters registers = (ControlRegisters) region.device;
+      // An empty transfer samples the counters of the core
+      registers.beginTransfer();
+      registers.endTransfer();
+      registers.copyTo(window, address);
+    }
+  }
+
+  private static MethodHandle fence(String name) {
+    try {
+      Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      Field field = unsafeClass.getDeclaredField("theUnsafe");
+      field.setAccessible(true);
+      return MethodHandles.lookup()
+          .findVirtual(unsafeClass, name, MethodType.methodType(void.class))
+          .bindTo(field.get(null));
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException("sun.misc.Unsafe is required to fence shared RAM", e);
+    }
+  }
+
+  private static void invoke(MethodHandle fence) {
+    try {
+      fence.invokeExact();
+    } catch (Throwable e) {
+      throw new IllegalStateException("Unable to fence shared RAM", e);
+    }
+  }
+
+  /**
+   * Moves the window to given buffer, for instance to a file that is mapped by another process.
+   * The current contents are copied to the buffer, and the transfers are fenced from now on.
+   */
+  void shareWindow(ByteBuffer buffer) {
+    if (buffer.capacity() < WINDOW_BUFFER_SIZE) {
+      throw new IllegalArgumentException("Window buffer should have at least "
+          + WINDOW_BUFFER_SIZE + " bytes, got " + buffer.capacity());
+    }
+    moveToWindow(buffer);
+    shared = true;
+  }
+
+  /**
+   * Moves the window of given memory to this one, so the views that were returned by
+   * {@link #window()} of that memory show this memory.
+   */
+  void takeWindow(DataMemory previous) {
+    if (previous.window != null) {
+      moveToWindow(previous.window);
+      shared = previous.shared;
+    }
+  }
+
+  private void moveToWindow(ByteBuffer window) {
+    window.clear();
+    for (int i = 0; i < WINDOW_PAGES; i++) {
+      if (pages[i] == null) {
+        // Device and unmapped pages are not backed by the window
+        for (int k = i << PAGE_BITS; k < (i + 1) << PAGE_BITS; k += 8) {
+          window.putLong(k, 0);
+        }
+      }
+    }
+    for (int i = 0; i < WINDOW_PAGES; i++) {
+      if (pages[i] == null) {
+        continue;
+      }
+      window.limit((i + 1) << PAGE_BITS).position(i << PAGE_BITS);
+      ByteBuffer slice = window.slice().order(ByteOrder.LITTLE_ENDIAN);
+      slice.put(whole(pages[i]));
+      pages[i] = slice;
+      owned[i >> 6] |= 1L << i;
+    }
+    window.clear();
+    this.window = window;
+  }
+
+  byte get(int address) {
+    int i = address >>> PAGE_BITS;
+    if (i >= PAGES) {
+      return external.get(address - externalAddress);
+    }
+    ByteBuffer page = pages[i];
+    if (page != null) {
+      return page.get(address & PAGE_MASK);
+    }
+    Region region = devices[i];
+    return region.device.read(address - region.address);
+  }
+
+  void put(int address, byte value) {
+    int i = address >>> PAGE_BITS;
+    if (i >= PAGES) {
+      external.put(address - externalAddress, value);
+      return;
+    }
+    if (pages[i] != null) {
+      writablePage(i).put(address & PAGE_MASK, value);
+      return;
+    }
+    Region region = devices[i];
+    region.device.write(address - region.address, value);
+  }
+
+  int getInt(int address) {
+    int i = address >>> PAGE_BITS;
+    if (i >= PAGES) {
+      return external.getInt(address - externalAddress);
+    }
+    int o = address & PAGE_MASK;
+    ByteBuffer page = pages[i];
+    if (page != null && o <= PAGE_SIZE - 4) {
+      return page.getInt(o);
+    }
+    return get(address) & 0xff | (get(address + 1) & 0xff) << 8
+        | (get(address + 2) & 0xff) << 16 | get(address + 3) << 24;
+  }
+
+  void putInt(int address, int value) {
+    int i = address >>> PAGE_BITS;
+    if (i >= PAGES) {
+      external.putInt(address - externalAddress, value);
+      return;
+    }
+    int o = address & PAGE_MASK;
+    if (pages[i] != null && o <= PAGE_SIZE - 4) {
+      writablePage(i).putInt(o, value);
+      return;
+    }
+    for (int k = 0; k < 4; k++) {
+      put(address + k, (byte) (value >>> (k * 8)));
+    }
+  }
+
+  /**
+   * Returns the estimated number of heap bytes that are not shared with other memories:
+   * the page table and the pages owned by this memory. Compressed references are assumed.
+   */
+  long footprint() {
+    long res = INSTANCE_SIZE + arraySize(PAGES, REFERENCE_SIZE) * 2
+        + arraySize(owned.length, 8) * 2;
+    for (int i = 0; i < PAGES; i++) {
+      if ((owned[i >> 6] & 1L << i) != 0 && (window == null || i >= WINDOW_PAGES)) {
+        res += PAGE_FOOTPRINT;
+      }
+    }
+    if (window != null && window.hasArray()) {
+      res += arraySize(WINDOW_BUFFER_SIZE, 1);
+    }
+    return res;
+  }
+
+  /**
+   * Returns the estimated size of an object with given total size of fields.
+   */
+  static long objectSize(int fieldBytes) {
+    return OBJECT_HEADER + fieldBytes + 7 & ~7;
+  }
+
+  static long arraySize(int length, int elementSize) {
+    return OBJECT_HEADER + 4 + (long) length * elementSize + 7 & ~7;
+  }
+
+  /**
+   * Zeroes RAM. Only the pages written since the previous clear are cleared, unless
+   * the window was requested.
+   */
+  void clear() {
+    if (window != null) {
+      if (window.hasArray()) {
+        Arrays.fill(window.array(), (byte) 0);
+      } else {
+        for (int i = 0; i < WINDOW_BUFFER_SIZE; i += 8) {
+          window.putLong(i, 0);
+        }
+      }
+    }
+    for (int i = 0; i < dirty.length; i++) {
+      for (long bits = dirty[i]; bits != 0; bits &= bits - 1) {
+        int page = i << 6 | Long.numberOfTrailingZeros(bits);
+        if (window != null && page < WINDOW_PAGES) {
+          continue;
+        }
+        if ((owned[i] & 1L << page) != 0) {
+          ByteBuffer p = pages[page];
+          Arrays.fill(p.array(), p.arrayOffset(), p.arrayOffset() + PAGE_SIZE, (byte) 0);
+        } else {
+          pages[page] = ZERO_PAGE;
+        }
+      }
+    }
+    Arrays.fill(dirty, 0);
+  }
+
+  private ByteBuffer writablePage(int page) {
+    int i = page >> 6;
+    long bit = 1L << page;
+    dirty[i] |= bit;
+    if ((owned[i] & bit) == 0) {
+      ByteBuffer shared = pages[page];
+      pages[page] = shared == ZERO_PAGE ? newPage() : copy(shared);
+      owned[i] |= bit;
+    }
+    return pages[page];
+  }
+
+  /**
+   * Device mapped to a range of pages.
+   */
+  private static final class Region {
+    final MmioDevice device;
+    final int address;
+
+    Region(MmioDevice device, int address) {
+      this.device = device;
+      this.address = address;
+    }
+  }
+}
@@ -0,0 +1,263 @@
+package com.github.vlsi.pru.plc110;
+
+import java.util.List;
+
+/**
+ * Program in a flat form that is used by {@link ExecutionMode#PREDECODED}.
+ * Each instruction occupies {@link #STRIDE} ints in {@link #code}.
+ * Register operands are resolved to register index, bit shift and bit mask, so register
+ * access is {@code (reg >>> shift) & mask}. Immediate operands are stored with zero mask,
+ * so the operand is always computed as {@code ((reg >>> shift) & mask) | imm}.
+ */
+final class DecodedProgram {
+  static final int STRIDE = 16;
+
+  // Instruction slot layout
+  static final int OP = 0;
+  static final int DST = 1;
+  static final int DST_SHIFT = 2;
+  static final int DST_MASK = 3;
+  static final int SRC = 4;
+  static final int SRC_SHIFT = 5;
+  static final int SRC_MASK = 6;
+  static final int OP2 = 7;
+  static final int OP2_SHIFT = 8;
+  static final int OP2_MASK = 9;
+  static final int OP2_IMM = 10;
+  // Absolute branch target for QB
+  static final int TARGET = 11;
+  // Memory transfer: DST is byte offset in the register file, SRC is address register,
+  // OP2 is offset operand, and the following is burst length operand
+  static final int LEN = 12;
+  static final int LEN_SHIFT = 13;
+  static final int LEN_MASK = 14;
+  static final int LEN_IMM = 15;
+  // Memory transfer: constant address for LBCO/SBCO, see constantAddress(). Every entry
+  // C0..C31 has an address, and the transfer checks whether the range is mapped
+  static final int ADDR_IMM = TARGET;
+
+  // Operation ids. Arithmetic operations use ArithmeticInstruction.Operation ordinals
+  static final int ADD = 0;
+  static final int ADC = 1;
+  static final int SUB = 2;
+  static final int SUC = 3;
+  static final int LSL = 4;
+  static final int LSR = 5;
+  static final int RSB = 6;
+  static final int RSC = 7;
+  static final int AND = 8;
+  static final int OR = 9;
+  static final int XOR = 10;
+  static final int NOT = 11;
+  static final int MIN = 12;
+  static final int MAX = 13;
+  static final int CLR = 14;
+  static final int SET = 15;
+  static final int LDI = 16;
+  static final int JMP = 17;
+  static final int JAL = 18;
+  static final int LMBD = 19;
+  // Quick branches use QuickBranchInstruction.Operation ordinals starting from QB
+  static final int QB = 20;
+  static final int QBNEVER = QB;
+  static final int QBLT = QB + 1;
+  static final int QBEQ = QB + 2;
+  static final int QBLE = QB + 3;
+  static final int QBGT = QB + 4;
+  static final int QBNE = QB + 5;
+  static final int QBGE = QB + 6;
+  static final int QBA = QB + 7;
+  static final int QBBS = QB + 8;
+  static final int QBBC = QB + 9;
+  static final int LOAD = 30;
+  static final int STORE = 31;
+  static final int UNSUPPORTED = 32;
+
+  static final DecodedProgram EMPTY = new DecodedProgram(new int[0]);
+
+  final int[] code;
+
+  private DecodedProgram(int[] code) {
+    this.code = code;
+  }
+
+  int size() {
+    return code.length / STRIDE;
+  }
+
+  int op(int pc) {
+    return code[pc * STRIDE + OP];
+  }
+
+  /**
+   * Returns true for single-cycle instructions that continue with {@code pc + 1}.
+   */
+  static boolean isStraight(int op) {
+    return op <= LMBD && op != JMP && op != JAL;
+  }
+
+  /**
+   * Returns true for single-cycle instructions that might transfer control.
+   */
+  static boolean isJump(int op) {
+    return op == JMP || op == JAL || (op >= QB && op <= QBBC);
+  }
+
+  static DecodedProgram decode(List<Instruction> instructions, int cpuId) {
+    int[] code = new int[instructions.size() * STRIDE];
+    for (int i = 0; i < instructions.size(); i++) {
+      decode(code, i, instructions.get(i), cpuId);
+    }
+    return new DecodedProgram(code);
+  }
+
+  private static void decode(int[] code, int pc, Instruction ins, int cpuId) {
+    int p = pc * STRIDE;
+    if (ins instanceof ArithmeticInstruction) {
+      ArithmeticInstruction ari = (ArithmeticInstruction) ins;
+      code[p + OP] = ari.operation.ordinal();
+      setRegister(code, p + DST, ari.dstRegister);
+      setRegister(code, p + SRC, ari.srcRegister);
+      if (ari.operation == ArithmeticInstruction.Operation.SET
+          && ari.srcRegister.index() == 31) {
+        // SET does not read R31 input flags, so the source is always zero
+        code[p + SRC_MASK] = 0;
+      }
+      setOperand(code, p + OP2, ari.op2, ari.op2IsRegister);
+      return;
+    }
+    if (ins instanceof LdiInstruction) {
+      LdiInstruction ldi = (LdiInstruction) ins;
+      code[p + OP] = LDI;
+      setRegister(code, p + DST, ldi.dstRegister);
+      code[p + OP2_IMM] = ldi.value;
+      return;
+    }
+    if (ins instanceof JumpInstruction) {
+      JumpInstruction jmp = (JumpInstruction) ins;
+      code[p + OP] = jmp.op == Format2Instruction.Operation.JAL ? JAL : JMP;
+      setRegister(code, p + DST, jmp.dstRegister);
+      setOperand(code, p + OP2, jmp.getOp2(), jmp.op2IsRegister);
+      return;
+    }
+    if (ins instanceof LeftMostBitDetectInstruction) {
+      LeftMostBitDetectInstruction lmbd = (LeftMostBitDetectInstruction) ins;
+      code[p + OP] = LMBD;
+      setRegister(code, p + DST, lmbd.dstRegister);
+      setRegister(code, p + SRC, lmbd.srcRegister);
+      setOperand(code, p + OP2, lmbd.op2, lmbd.op2IsRegister);
+      return;
+    }
+    if (ins instanceof QuickBranchInstruction) {
+      QuickBranchInstruction qb = (QuickBranchInstruction) ins;
+      code[p + OP] = QB + qb.operation.ordinal();
+      setRegister(code, p + SRC, qb.srcRegister);
+      setOperand(code, p + OP2, qb.op2, qb.op2IsRegister);
+      code[p + TARGET] = pc + qb.getOffset();
+      return;
+    }
+    if (ins instanceof MemoryTransferInstruction) {
+      MemoryTransferInstruction mt = (MemoryTransferInstruction) ins;
+      code[p + OP] = mt.op == MemoryTransferInstruction.Operation.LOAD ? LOAD : STORE;
+      Register srcDst = mt.srcDst;
+      code[p + DST] = srcDst.index() * 4 + srcDst.field().byteOffset();
+      if (mt.addressIsRegister()) {
+        setRegister(code, p + SRC, mt.getAddress());
+      } else {
+        code[p + ADDR_IMM] = constantAddress(mt.getAddressEntry(), cpuId);
+      }
+      if (mt.offsetIsRegister()) {
+        setRegister(code, p + OP2, mt.getOffsetRegister());
+      } else {
+        code[p + OP2_IMM] = mt.getOffsetImm();
+      }
+      if (mt.lengthIsRegister()) {
+        setRegister(code, p + LEN, new Register(0, mt.getLengthField()));
+      } else {
+        code[p + LEN_IMM] = mt.getLengthByte();
+      }
+      return;
+    }
+    code[p + OP] = UNSUPPORTED;
+  }
+
+  private static final int[] CONSTANT_TABLE = {
+      0x00004000, // C0 PRU INTC
+      0x01C20000, // C1 Timer64P0
+      0x01C22000, // C2 I2C0
+      0x00000000, // C3 PRU0/1 Local Data
+      0x00002000, // C4 PRU1/0 Local Data
+      0x01C40000, // C5 MMC/SD
+      0x01C41000, // C6 SPI0
+      0x01C42000, // C7 UART0
+      0x01D02000, // C8 McASP0 DMA
+      0x01D06000, // C9 Reserved
+      0x01D0A000, // C10 Reserved
+      0x01D0C000, // C11 UART1
+      0x01D0D000, // C12 UART2
+      0x01E00000, // C13 USB0
+      0x01E25000, // C14 USB1
+      0x01E10000, // C15 UHPI Config
+      0x01E13000, // C16 Reserved
+      0x01E28000, // C17 I2C1
+      0x01F00000, // C18 EPWM0
+      0x01F02000, // C19 EPWM1
+      0x01F04000, // C20 Reserved
+      0x01F06000, // C21 ECAP0
+      0x01F07000, // C22 ECAP1
+      0x01F08000, // C23 ECAP2
+      0x00000000, // C24 own data RAM
+      0x00002000, // C25 other data RAM
+      0x00007000, // C26 own control registers
+      0x00007800, // C27 other control registers
+      0x00010000, // C28 shared RAM
+      0x60000000, // C29 EMIFA
+      0x80000000, // C30 L3 RAM
+      0xC0000000, // C31 DDR
+  };
+
+  /**
+   * Returns the address of the constant table entry. The table follows OMAP-L138 PRUSS,
+   * except C24..C31, which are programmable in hardware: the emulator points them to own and
+   * other PRU data RAM, own and other PRU control registers, shared RAM, EMIFA, L3 RAM and DDR.
+   */
+  static int constantAddress(int entry, int cpuId) {
+    int own = cpuId == 0 ? DataMemory.PRU0_DATA_RAM : DataMemory.PRU1_DATA_RAM;
+    int other = cpuId == 0 ? DataMemory.PRU1_DATA_RAM : DataMemory.PRU0_DATA_RAM;
+    int ownControl = cpuId == 0
+        ? DataMemory.PRU0_CONTROL_REGISTERS : DataMemory.PRU1_CONTROL_REGISTERS;
+    int otherControl = cpuId == 0
+        ? DataMemory.PRU1_CONTROL_REGISTERS : DataMemory.PRU0_CONTROL_REGISTERS;
+    switch (entry & 31) {
+      case 3: // PRU0/1 Local Data
+      case 24:
+        return own;
+      case 4: // PRU1/0 Local Data
+      case 25:
+        return other;
+      case 26:
+        return ownControl;
+      case 27:
+        return otherControl;
+      case 28:
+        return DataMemory.SHARED_RAM;
+      default:
+        return CONSTANT_TABLE[entry & 31];
+    }
+  }
+
+  private static void setRegister(int[] code, int offset, Register reg) {
+    RegisterField field = reg.field();
+    code[offset] = reg.index();
+    code[offset + 1] = field.byteOffset() * 8;
+    code[offset + 2] = field.getBitMask();
+  }
+
+  private static void setOperand(int[] code, int offset, int op2, boolean op2IsRegister) {
+    if (op2IsRegister) {
+      setRegister(code, offset, Register.ofMask(op2));
+    } else {
+      code[offset + 3] = op2;
+    }
+  }
+}
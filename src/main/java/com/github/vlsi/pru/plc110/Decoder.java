@@ -4,6 +4,10 @@ import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
+/**
+ * Decodes machine code to instructions. Each word is decoded to a new instance, so the caller
+ * may modify the returned instructions.
+ */
 public class Decoder {
   public List<Instruction> decode(ByteBuffer bb) {
     return decode(bb, false);
@@ -0,0 +1,42 @@
+package com.github.vlsi.pru.plc110;
+
+/**
+ * Selects the way {@link Pru} executes the program.
+ * All the modes produce the same registers, memory contents and cycle counts.
+ */
+public enum ExecutionMode {
+  /**
+   * Reference interpreter that dispatches on {@link Instruction} classes on each tick.
+   */
+  INTERPRETER,
+  /**
+   * Program is decoded once in {@link Pru#setCode(BinaryCode)} into a flat {@code int[]} form,
+   * so each tick is a single {@code switch} that does not allocate.
+   */
+  PREDECODED,
+  /**
+   * Same as {@link #PREDECODED} for {@link Pru#tick()}, however {@link Pru#run(int)} and
+   * {@link Pru#runTillHalt(int)} translate straight-line blocks that end with a jump
+   * to JVM classes, and execute each block in a single call.
+   */
+  COMPILED,
+  /**
+   * Each instruction is turned into a closure that captures its resolved operands,
+   * so each tick is a single virtual call. {@link Pru#run(int)} and {@link Pru#runTillHalt(int)}
+   * profile the program first, and then they fuse the most frequent pairs and triples
+   * of instructions into superinstructions, each translated to a JVM method.
+   */
+  CLOSURE,
+  /**
+   * Same as {@link #PREDECODED} for {@link Pru#tick()}, however {@link Pru#run(int)} and
+   * {@link Pru#runTillHalt(int)} count backward branches, record hot loops and translate them
+   * to JVM classes. The loop is left via side exit as soon as a branch goes the other way
+   * than it went during the recording.
+   */
+  TRACING,
+  /**
+   * Blocks of {@link #COMPILED} mode start in {@link #PREDECODED} interpreter, and they are
+   * compiled once they become hot. See {@link Pru#getTiering()}.
+   */
+  TIERED
+}
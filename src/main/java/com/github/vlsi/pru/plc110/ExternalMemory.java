@@ -0,0 +1,68 @@
+package com.github.vlsi.pru.plc110;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Large memory region, like host DDR, that is backed by a memory-mapped file, see
+ * {@link Pru#mapExternalMemory(int, ExternalMemory)}. The program accesses the mapping directly,
+ * so the contents do not occupy Java heap, and other processes can read the same file while
+ * the emulator runs.
+ * <p>The region is not part of {@link PruSnapshot} and checkpoints, it is shared by forks,
+ * and {@link Pru#reset()} does not clear it.
+ */
+public final class ExternalMemory {
+  /**
+   * Address of DDR as seen via constant table entry C31.
+   */
+  public static final int DDR = 0xC0000000;
+
+  private final MappedByteBuffer buffer;
+
+  private ExternalMemory(MappedByteBuffer buffer) {
+    this.buffer = buffer;
+  }
+
+  /**
+   * Maps given file for reading and writing. The file is created or extended to
+   * {@code size} bytes, and the existing contents are kept.
+   */
+  public static ExternalMemory map(Path file, int size) throws IOException {
+    if (size <= 0) {
+      throw new IllegalArgumentException("External memory size should be positive: " + size);
+    }
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+        StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+      buffer.order(ByteOrder.LITTLE_ENDIAN);
+      return new ExternalMemory(buffer);
+    }
+  }
+
+  public int size() {
+    return buffer.capacity();
+  }
+
+  /**
+   * Returns a live little-endian view of the region.
+   */
+  public ByteBuffer buffer() {
+    return buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  /**
+   * Writes the modified contents to the file.
+   */
+  public void force() {
+    buffer.force();
+  }
+
+  MappedByteBuffer mapping() {
+    return buffer;
+  }
+}
@@ -7,6 +7,6 @@ public class IllegalInstruction extends Instruction {
 
   @Override
   public String toString() {
-    return "IllegalInstruction: 0x" + Integer.toUnsignedString(code);
+    return "IllegalInstruction: 0x" + Integer.toUnsignedString(getCode());
   }
 }
@@ -3,13 +3,23 @@ package com.github.vlsi.pru.plc110;
 import java.util.List;
 
 public abstract class Instruction {
-  public int code;
+  private int code;
   private String comment;
+  private boolean shared;
 
   public Instruction(int code) {
     this.code = code;
   }
 
+  public int getCode() {
+    return code;
+  }
+
+  final void setCode(int code) {
+    checkNotShared();
+    this.code = code;
+  }
+
   public static Instruction of(int code) {
     if ((code >>> 30) == 0b01) {
       // Format 4a or 4b
@@ -47,10 +57,30 @@ public abstract class Instruction {
   }
 
   public Instruction setComment(String comment) {
+    checkNotShared();
     this.comment = comment;
     return this;
   }
 
+  /**
+   * Returns true if the instruction belongs to a {@link Program}, so it cannot be modified.
+   * Instructions returned by {@link Decoder} and {@link #of(int)} are not shared.
+   */
+  public boolean isShared() {
+    return shared;
+  }
+
+  final void share() {
+    shared = true;
+  }
+
+  final void checkNotShared() {
+    if (shared) {
+      throw new IllegalStateException("Instruction " + this + " is shared by a decoded program"
+          + ", so it cannot be modified. Please use Instruction.of(code) to get a private copy");
+    }
+  }
+
   public String commentToString() {
     return comment != null ? " ; " + comment : "";
   }
@@ -0,0 +1,379 @@
+package com.github.vlsi.pru.plc110;
+
+import static com.github.vlsi.pru.plc110.DecodedProgram.DST;
+import static com.github.vlsi.pru.plc110.DecodedProgram.DST_MASK;
+import static com.github.vlsi.pru.plc110.DecodedProgram.DST_SHIFT;
+import static com.github.vlsi.pru.plc110.DecodedProgram.OP;
+import static com.github.vlsi.pru.plc110.DecodedProgram.OP2;
+import static com.github.vlsi.pru.plc110.DecodedProgram.OP2_IMM;
+import static com.github.vlsi.pru.plc110.DecodedProgram.OP2_MASK;
+import static com.github.vlsi.pru.plc110.DecodedProgram.SRC;
+import static com.github.vlsi.pru.plc110.DecodedProgram.SRC_MASK;
+import static com.github.vlsi.pru.plc110.DecodedProgram.STRIDE;
+import static com.github.vlsi.pru.plc110.DecodedProgram.TARGET;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Translates {@link BinaryCode} to Java source of a {@link TranslatedProgram} subclass.
+ * The program is split into chunks of {@link #CHUNK_SIZE} instructions, and each chunk is
+ * a method with a {@code switch} over pc, so consecutive instructions fall through and HotSpot
+ * can compile each chunk.
+ * Instruction comments are kept, so the source should be compiled with UTF-8 encoding.
+ * <p>Usage: {@code JavaSourceTranslator <generator class> <translated class> <output dir>}
+ */
+public final class JavaSourceTranslator {
+  static final int CHUNK_BITS = 6;
+  static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+  private final StringBuilder sb = new StringBuilder();
+  private int[] c;
+
+  private JavaSourceTranslator() {
+  }
+
+  public static void main(String[] args) throws ReflectiveOperationException, IOException {
+    if (args.length != 3) {
+      System.err.println(
+          "Usage: JavaSourceTranslator <generator class> <translated class> <output dir>");
+      System.exit(1);
+    }
+    @SuppressWarnings("unchecked")
+    Consumer<CodeEmitter> generator =
+        (Consumer<CodeEmitter>) Class.forName(args[0]).getConstructor().newInstance();
+    String className = args[1];
+    Path file = Paths.get(args[2], className.replace('.', '/') + ".java");
+    Files.createDirectories(file.getParent());
+    Files.write(file, translate(generator, className).getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Translates the program produced by the generator.
+   *
+   * @param generator code generator
+   * @param className fully qualified name of the generated class
+   * @return Java source
+   */
+  public static String translate(Consumer<CodeEmitter> generator, String className) {
+    CodeEmitter ce = new CodeEmitter();
+    generator.accept(ce);
+    return translate(ce.visitEnd(), className);
+  }
+
+  /**
+   * Translates the program.
+   *
+   * @param code program
+   * @param className fully qualified name of the generated class
+   * @return Java source
+   */
+  public static String translate(BinaryCode code, String className) {
+    JavaSourceTranslator translator = new JavaSourceTranslator();
+    translator.generateClass(code.getInstructions(), className);
+    return translator.sb.toString();
+  }
+
+  private void generateClass(List<Instruction> instructions, String className) {
+    // Constant table addresses are resolved by the interpreter, so cpuId does not matter here
+    c = DecodedProgram.decode(instructions, 0).code;
+    int size = instructions.size();
+    int dot = className.lastIndexOf('.');
+    if (dot != -1) {
+      sb.append("package ").append(className, 0, dot).append(";\n\n");
+    }
+    sb.append("import com.github.vlsi.pru.plc110.TranslatedProgram;\n\n")
+        .append("/**\n")
+        .append(" * Generated by ").append(JavaSourceTranslator.class.getName())
+        .append(", do not edit.\n")
+        .append(" */\n")
+        .append("public final class ").append(className.substring(dot + 1))
+        .append(" extends TranslatedProgram {\n")
+        .append("  private static final int[] CODE = {");
+    for (int pc = 0; pc < size; pc++) {
+      sb.append(pc % 8 == 0 ? "\n      " : " ")
+          .append(hex(instructions.get(pc).getCode())).append(',');
+    }
+    sb.append("\n  };\n\n")
+        .append("  public ").append(className.substring(dot + 1)).append("() {\n")
+        .append("    super(CODE);\n")
+        .append("  }\n\n");
+
+    int chunks = (size + CHUNK_SIZE - 1) / CHUNK_SIZE;
+    sb.append("  @Override\n")
+        .append("  protected int execute(int[] r, int[] state, int cycles) {\n")
+        .append("    int left = cycles;\n")
+        .append("    while (left > 0 && state[2] == 0) {\n")
+        .append("      switch (state[0] >>> ").append(CHUNK_BITS).append(") {\n");
+    for (int chunk = 0; chunk < chunks; chunk++) {
+      sb.append("        case ").append(chunk).append(":\n")
+          .append("          left = chunk").append(chunk).append("(r, state, left);\n")
+          .append("          break;\n");
+    }
+    sb.append("        default:\n")
+        .append("          state[2] = 1;\n")
+        .append("      }\n")
+        .append("    }\n")
+        .append("    return cycles - left;\n")
+        .append("  }\n");
+
+    for (int chunk = 0; chunk < chunks; chunk++) {
+      generateChunk(instructions, chunk, Math.min(size, (chunk + 1) * CHUNK_SIZE));
+    }
+    sb.append("}\n");
+  }
+
+  private void generateChunk(List<Instruction> instructions, int chunk, int end) {
+    int start = chunk * CHUNK_SIZE;
+    sb.append("\n")
+        .append("  private static int chunk").append(chunk)
+        .append("(int[] r, int[] state, int left) {\n")
+        .append("    int pc = state[0];\n")
+        .append("    int carry = state[1];\n")
+        .append("    loop:\n")
+        .append("    while (true) {\n")
+        .append("      switch (pc) {\n")
+        .append("        default:\n")
+        .append("          if (pc >>> ").append(CHUNK_BITS).append(" == ").append(chunk)
+        .append(") {\n")
+        .append("            state[2] = 1;\n")
+        .append("          }\n")
+        .append("          break loop;\n");
+    boolean fallsThrough = false;
+    for (int pc = start; pc < end; pc++) {
+      sb.append("        case ").append(pc).append(": // ")
+          .append(comment(instructions.get(pc))).append('\n');
+      fallsThrough = generateInstruction(pc, start, end);
+    }
+    if (fallsThrough) {
+      line("pc = " + end + ";");
+      line("break loop;");
+    }
+    sb.append("      }\n")
+        .append("    }\n")
+        .append("    state[0] = pc;\n")
+        .append("    state[1] = carry;\n")
+        .append("    return left;\n")
+        .append("  }\n");
+  }
+
+  /**
+   * Generates instruction body.
+   *
+   * @return true if the execution might continue with the next case
+   */
+  private boolean generateInstruction(int pc, int start, int end) {
+    int p = pc * STRIDE;
+    int op = c[p + OP];
+    if (op == DecodedProgram.LOAD || op == DecodedProgram.STORE
+        || op == DecodedProgram.UNSUPPORTED) {
+      line("pc = " + pc + ";");
+      line("state[2] = 1;");
+      line("break loop;");
+      return false;
+    }
+    line("if (left == 0) {");
+    line("  pc = " + pc + ";");
+    line("  break loop;");
+    line("}");
+    line("left--;");
+    String src = register(p + SRC);
+    String op2 = operand(p + OP2);
+    switch (op) {
+      case DecodedProgram.ADD:
+        line("{");
+        line("  int op2 = " + op2 + ";");
+        line("  int res = " + mask("(" + src + " + op2)", c[p + DST_MASK]) + ";");
+        line("  carry = Integer.compareUnsigned(res, op2) >>> 31;");
+        line("  " + writeDst(p, "res"));
+        line("}");
+        return true;
+      case DecodedProgram.ADC:
+        line("{");
+        line("  int op2 = " + op2 + ";");
+        line("  int res = " + mask("(" + src + " + op2 + carry)", c[p + DST_MASK]) + ";");
+        line("  carry = (Integer.compareUnsigned(res, op2) - carry) >>> 31;");
+        line("  " + writeDst(p, "res"));
+        line("}");
+        return true;
+      case DecodedProgram.SUB:
+      case DecodedProgram.SUC:
+      case DecodedProgram.RSB:
+      case DecodedProgram.RSC: {
+        String unsignedSrc = "Integer.toUnsignedLong(" + src + ")";
+        String res = op == DecodedProgram.SUB || op == DecodedProgram.SUC
+            ? unsignedSrc + " - " + op2
+            : op2 + " - " + unsignedSrc;
+        if (op == DecodedProgram.SUC || op == DecodedProgram.RSC) {
+          res += " - carry";
+        }
+        line("{");
+        line("  long res = " + res + ";");
+        line("  carry = (int) (res >>> 63);");
+        line("  " + writeDst(p, "(int) res"));
+        line("}");
+        return true;
+      }
+      case DecodedProgram.LSL:
+        line(writeDst(p, src + " << (" + op2 + " & 0x1f)"));
+        return true;
+      case DecodedProgram.LSR:
+        line(writeDst(p, src + " >>> (" + op2 + " & 0x1f)"));
+        return true;
+      case DecodedProgram.AND:
+        line(writeDst(p, src + " & " + op2));
+        return true;
+      case DecodedProgram.OR:
+        line(writeDst(p, src + " | " + op2));
+        return true;
+      case DecodedProgram.XOR:
+        line(writeDst(p, src + " ^ " + op2));
+        return true;
+      case DecodedProgram.NOT:
+        line(writeDst(p, "~" + src));
+        return true;
+      case DecodedProgram.MIN:
+        line(writeDst(p, "Math.min(" + src + ", " + op2 + ")"));
+        return true;
+      case DecodedProgram.MAX:
+        line(writeDst(p, "Math.max(" + src + ", " + op2 + ")"));
+        return true;
+      case DecodedProgram.CLR:
+        line(writeDst(p, src + " & ~(1 << (" + op2 + " & 0x1f))"));
+        return true;
+      case DecodedProgram.SET:
+        line(writeDst(p, src + " | 1 << (" + op2 + " & 0x1f)"));
+        return true;
+      case DecodedProgram.LDI:
+        line(writeDst(p, literal(c[p + OP2_IMM])));
+        return true;
+      case DecodedProgram.LMBD:
+        line("{");
+        line("  int src = " + src + ";");
+        line("  if ((" + op2 + " & 1) == 0) {");
+        line("    src ^= " + hex(c[p + SRC_MASK]) + ";");
+        line("  }");
+        line("  int res = 31 - Integer.numberOfLeadingZeros(src);");
+        line("  " + writeDst(p, "res < 0 ? 32 : res"));
+        line("}");
+        return true;
+      case DecodedProgram.JAL:
+        // Return address is written before the target is read
+        line(writeDst(p, String.valueOf(pc + 1)));
+        jump("", op2, c[p + OP2_MASK] == 0 ? c[p + OP2_IMM] : -1, start, end);
+        return false;
+      case DecodedProgram.JMP:
+        jump("", op2, c[p + OP2_MASK] == 0 ? c[p + OP2_IMM] : -1, start, end);
+        return false;
+      case DecodedProgram.QBNEVER:
+        return true;
+      case DecodedProgram.QBA:
+        jump("", String.valueOf(c[p + TARGET]), c[p + TARGET], start, end);
+        return false;
+      default:
+        line("if (" + branchCondition(op, src, op2) + ") {");
+        jump("  ", String.valueOf(c[p + TARGET]), c[p + TARGET], start, end);
+        line("}");
+        return true;
+    }
+  }
+
+  private static String branchCondition(int op, String src, String op2) {
+    switch (op) {
+      case DecodedProgram.QBLT:
+        return "Integer.compareUnsigned(" + op2 + ", " + src + ") < 0";
+      case DecodedProgram.QBEQ:
+        return op2 + " == " + src;
+      case DecodedProgram.QBLE:
+        return "Integer.compareUnsigned(" + op2 + ", " + src + ") <= 0";
+      case DecodedProgram.QBGT:
+        return "Integer.compareUnsigned(" + op2 + ", " + src + ") > 0";
+      case DecodedProgram.QBNE:
+        return op2 + " != " + src;
+      case DecodedProgram.QBGE:
+        return "Integer.compareUnsigned(" + op2 + ", " + src + ") >= 0";
+      case DecodedProgram.QBBS:
+        return "(" + src + " & 1 << (" + op2 + " & 31)) != 0";
+      case DecodedProgram.QBBC:
+        return "(" + src + " & 1 << (" + op2 + " & 31)) == 0";
+      default:
+        throw new IllegalStateException("Unexpected operation " + op);
+    }
+  }
+
+  /**
+   * Transfers control to the target.
+   *
+   * @param indent additional indentation
+   * @param target target expression
+   * @param constTarget target pc, or -1 if it is not known at translation time
+   */
+  private void jump(String indent, String target, int constTarget, int start, int end) {
+    line(indent + "pc = " + target + ";");
+    // Targets outside of the chunk are dispatched by execute
+    boolean sameChunk = constTarget == -1 || (constTarget >= start && constTarget < end);
+    line(indent + (sameChunk ? "continue loop;" : "break loop;"));
+  }
+
+  private void line(String line) {
+    sb.append("          ").append(line).append('\n');
+  }
+
+  private String register(int offset) {
+    int mask = c[offset + 2];
+    if (mask == 0) {
+      return "0";
+    }
+    String value = "r[" + c[offset] + "]";
+    int shift = c[offset + 1];
+    if (shift != 0) {
+      value += " >>> " + shift;
+    }
+    return mask == -1 ? value : "(" + value + " & " + hex(mask) + ")";
+  }
+
+  private String operand(int offset) {
+    if (c[offset + 2] == 0) {
+      return literal(c[offset + 3]);
+    }
+    String value = register(offset);
+    return value.startsWith("(") ? value : "(" + value + ")";
+  }
+
+  private static String mask(String value, int mask) {
+    return mask == -1 ? value : value + " & " + hex(mask);
+  }
+
+  private String writeDst(int p, String value) {
+    int index = c[p + DST];
+    int shift = c[p + DST_SHIFT];
+    int mask = c[p + DST_MASK];
+    if (mask == -1) {
+      return "r[" + index + "] = " + value + ";";
+    }
+    String masked = "((" + value + ") & " + hex(mask) + ")";
+    if (shift != 0) {
+      masked = "(" + masked + " << " + shift + ")";
+    }
+    return "r[" + index + "] = r[" + index + "] & " + hex(~(mask << shift))
+        + " | " + masked + ";";
+  }
+
+  private static String literal(int value) {
+    return value < 0 ? "(" + value + ")" : String.valueOf(value);
+  }
+
+  private static String hex(int value) {
+    return "0x" + Integer.toHexString(value);
+  }
+
+  private static String comment(Instruction ins) {
+    // Comments might contain line breaks or unicode escapes
+    return ins.toString().replaceAll("[\\p{Cntrl}\\\\]", " ");
+  }
+}
@@ -2,7 +2,7 @@ package com.github.vlsi.pru.plc110;
 
 public class JumpInstruction extends Format2Instruction implements Jump {
   public final Register dstRegister;
-  public int op2;
+  private int op2;
   public final boolean op2IsRegister;
   public final Label target;
 
@@ -53,6 +53,10 @@ public class JumpInstruction extends Format2Instruction implements Jump {
         dstRegister, target);
   }
 
+  public int getOp2() {
+    return op2;
+  }
+
   @Override
   public Label getTarget() {
     return target;
@@ -63,9 +67,10 @@ public class JumpInstruction extends Format2Instruction implements Jump {
     if (target == null) {
       return;
     }
-    this.op2 = target.getAbsoluteOffset();
+    int op2 = target.getAbsoluteOffset();
     assert op2 >= 0 && op2 < 1023 : "Jump absolute location should be in 0..1023. Given offset " + op2;
-    this.code = (this.code & ~(0xffff << 8)) | ((op2 & 0xffff) << 8);
+    setCode((getCode() & ~(0xffff << 8)) | ((op2 & 0xffff) << 8));
+    this.op2 = op2;
   }
 
   @Override
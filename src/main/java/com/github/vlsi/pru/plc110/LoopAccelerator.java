@@ -0,0 +1,343 @@
+package com.github.vlsi.pru.plc110;
+
+import static com.github.vlsi.pru.plc110.DecodedProgram.DST;
+import static com.github.vlsi.pru.plc110.DecodedProgram.DST_MASK;
+import static com.github.vlsi.pru.plc110.DecodedProgram.DST_SHIFT;
+import static com.github.vlsi.pru.plc110.DecodedProgram.OP;
+import static com.github.vlsi.pru.plc110.DecodedProgram.OP2;
+import static com.github.vlsi.pru.plc110.DecodedProgram.OP2_IMM;
+import static com.github.vlsi.pru.plc110.DecodedProgram.OP2_MASK;
+import static com.github.vlsi.pru.plc110.DecodedProgram.OP2_SHIFT;
+import static com.github.vlsi.pru.plc110.DecodedProgram.SRC;
+import static com.github.vlsi.pru.plc110.DecodedProgram.SRC_MASK;
+import static com.github.vlsi.pru.plc110.DecodedProgram.SRC_SHIFT;
+import static com.github.vlsi.pru.plc110.DecodedProgram.STRIDE;
+import static com.github.vlsi.pru.plc110.DecodedProgram.TARGET;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Fast-forwards delay and busy-wait loops like {@code SUB R4, R4, 2; QBNE loop, R4, 0}.
+ * A loop is a backward quick branch to the head, and the body consists of
+ * {@code ADD/SUB Rx, Rx, imm} only, so each register field is an affine function of
+ * the iteration number. The number of iterations the branch is taken is computed in closed
+ * form, and all but the last of those iterations are skipped. The last one is executed with
+ * {@link Pru#tick()}, so carry and the rest of the state are exactly the same as if
+ * each iteration was executed.
+ */
+final class LoopAccelerator {
+  private final Loop[] loops;
+
+  private LoopAccelerator(Loop[] loops) {
+    this.loops = loops;
+  }
+
+  /**
+   * Finds loops in the program.
+   *
+   * @return accelerator or null if the program has no suitable loops
+   */
+  static LoopAccelerator analyze(DecodedProgram program) {
+    Loop[] loops = new Loop[program.size()];
+    boolean found = false;
+    for (int pc = 0; pc < program.size(); pc++) {
+      Loop loop = Loop.of(program.code, pc);
+      if (loop != null) {
+        loops[loop.head] = loop;
+        found = true;
+      }
+    }
+    return found ? new LoopAccelerator(loops) : null;
+  }
+
+  /**
+   * Executes loop iterations if the cpu is at the loop head.
+   *
+   * @return number of executed cycles, or 0 if nothing was executed
+   */
+  int run(Pru cpu, int maxCycles) {
+    int pc = cpu.pc;
+    if (pc < 0 || pc >= loops.length) {
+      return 0;
+    }
+    Loop loop = loops[pc];
+    if (loop == null) {
+      return 0;
+    }
+    long iterations = loop.takenIterations(cpu, maxCycles / loop.length);
+    if (iterations < 2) {
+      return 0;
+    }
+    int skipped = (int) iterations - 1;
+    for (int i = 0; i < loop.index.length; i++) {
+      int value = cpu.readRegister(loop.index[i], loop.shift[i], loop.mask[i]);
+      cpu.writeRegister(loop.index[i], loop.shift[i], loop.mask[i],
+          value + skipped * loop.delta[i]);
+    }
+    int cycles = skipped * loop.length;
+    cpu.cycleCount += cycles;
+    cpu.cycleCountNonReset += cycles;
+    // The last iteration computes carry
+    for (int i = 0; i < loop.length; i++) {
+      cpu.tick();
+    }
+    return cycles + loop.length;
+  }
+
+  private static final class Loop {
+    final int head;
+    final int length;
+    // Induction variables: register field is incremented by delta on each iteration
+    final int[] index;
+    final int[] shift;
+    final int[] mask;
+    final int[] delta;
+    // Closing branch
+    final int op;
+    final Operand src;
+    final Operand op2;
+
+    private Loop(int head, int length, List<int[]> variables, int op, Operand src, Operand op2) {
+      this.head = head;
+      this.length = length;
+      int size = variables.size();
+      index = new int[size];
+      shift = new int[size];
+      mask = new int[size];
+      delta = new int[size];
+      for (int i = 0; i < size; i++) {
+        int[] v = variables.get(i);
+        index[i] = v[0];
+        shift[i] = v[1];
+        mask[i] = v[2];
+        delta[i] = v[3];
+      }
+      this.op = op;
+      this.src = src;
+      this.op2 = op2;
+    }
+
+    /**
+     * Analyzes loop that ends with a quick branch at given pc.
+     *
+     * @return loop or null if the instruction does not close a loop that can be accelerated
+     */
+    static Loop of(int[] c, int end) {
+      int e = end * STRIDE;
+      int op = c[e + OP];
+      if (op < DecodedProgram.QB || op > DecodedProgram.QBBC
+          || op == DecodedProgram.QBNEVER) {
+        return null;
+      }
+      int head = c[e + TARGET];
+      if (head > end || head < 0) {
+        return null;
+      }
+      List<int[]> variables = new ArrayList<>();
+      for (int pc = head; pc < end; pc++) {
+        int p = pc * STRIDE;
+        int bodyOp = c[p + OP];
+        if (bodyOp != DecodedProgram.ADD && bodyOp != DecodedProgram.SUB
+            || c[p + OP2_MASK] != 0
+            || c[p + DST] != c[p + SRC]
+            || c[p + DST_SHIFT] != c[p + SRC_SHIFT]
+            || c[p + DST_MASK] != c[p + SRC_MASK]
+            || c[p + DST] >= 30) { // R30 and R31 are I/O
+          return null;
+        }
+        int imm = c[p + OP2_IMM];
+        if (!addVariable(variables, c[p + DST], c[p + DST_SHIFT], c[p + DST_MASK],
+            bodyOp == DecodedProgram.ADD ? imm : -imm)) {
+          return null;
+        }
+      }
+      Operand src = Operand.of(variables, c[e + SRC], c[e + SRC_SHIFT], c[e + SRC_MASK], 0);
+      Operand op2 = Operand.of(variables, c[e + OP2], c[e + OP2_SHIFT], c[e + OP2_MASK],
+          c[e + OP2_IMM]);
+      if (src == null || op2 == null || src.delta != 0 && op2.delta != 0) {
+        return null;
+      }
+      return new Loop(head, end - head + 1, variables, op, src, op2);
+    }
+
+    /**
+     * Adds increment of a register field.
+     *
+     * @return false if the register is already modified via a different field
+     */
+    private static boolean addVariable(List<int[]> variables, int index, int shift, int mask,
+                                       int delta) {
+      for (int[] v : variables) {
+        if (v[0] == index) {
+          v[3] += delta;
+          return v[1] == shift && v[2] == mask;
+        }
+      }
+      variables.add(new int[]{index, shift, mask, delta});
+      return true;
+    }
+
+    /**
+     * Computes the number of consecutive iterations that end with taken branch.
+     *
+     * @param limit the maximum number of iterations
+     * @return the number of iterations, at most {@code limit}
+     */
+    long takenIterations(Pru cpu, long limit) {
+      if (limit < 2) {
+        return 0;
+      }
+      int srcValue = src.value(cpu);
+      int op2Value = op2.value(cpu);
+      Operand var = src.delta != 0 ? src : op2.delta != 0 ? op2 : null;
+      if (var == null) {
+        // Busy wait: the condition does not change
+        return taken(srcValue, op2Value) ? limit : 0;
+      }
+      int x0 = var == src ? srcValue : op2Value;
+      int other = var == src ? op2Value : srcValue;
+      long mod = (var.mask & 0xffffffffL) + 1;
+      long step = var.delta & var.mask & 0xffffffffL;
+      if (op == DecodedProgram.QBNE) {
+        if ((other & ~var.mask) != 0) {
+          // The field never reaches the value
+          return limit;
+        }
+        long exit = firstEqual(x0 & 0xffffffffL, other & 0xffffffffL, step, mod);
+        return Math.min(exit - 1, limit);
+      }
+      if (op == DecodedProgram.QBEQ || op == DecodedProgram.QBBS || op == DecodedProgram.QBBC) {
+        // The sequence does not repeat the same value, and bit tests are not monotonic
+        return 0;
+      }
+      // Ordered comparison is monotonic till the value wraps around
+      long x = x0 & 0xffffffffL;
+      long noWrap;
+      if (step <= mod / 2) {
+        noWrap = (mod - 1 - x) / step;
+      } else {
+        noWrap = x / (mod - step);
+      }
+      long hi = Math.min(noWrap, limit);
+      if (hi < 1 || !takenAt(var, x0, other, 1)) {
+        return 0;
+      }
+      long lo = 1;
+      while (lo < hi) {
+        long mid = (lo + hi + 1) >>> 1;
+        if (takenAt(var, x0, other, mid)) {
+          lo = mid;
+        } else {
+          hi = mid - 1;
+        }
+      }
+      return lo;
+    }
+
+    private boolean takenAt(Operand var, int x0, int other, long iteration) {
+      int x = (int) (x0 + iteration * var.delta) & var.mask;
+      return var == src ? taken(x, other) : taken(other, x);
+    }
+
+    private boolean taken(int srcValue, int op2Value) {
+      switch (op) {
+        case DecodedProgram.QBLT:
+          return Integer.compareUnsigned(op2Value, srcValue) < 0;
+        case DecodedProgram.QBEQ:
+          return op2Value == srcValue;
+        case DecodedProgram.QBLE:
+          return Integer.compareUnsigned(op2Value, srcValue) <= 0;
+        case DecodedProgram.QBGT:
+          return Integer.compareUnsigned(op2Value, srcValue) > 0;
+        case DecodedProgram.QBNE:
+          return op2Value != srcValue;
+        case DecodedProgram.QBGE:
+          return Integer.compareUnsigned(op2Value, srcValue) >= 0;
+        case DecodedProgram.QBA:
+          return true;
+        case DecodedProgram.QBBS:
+          return (srcValue & (1 << (op2Value & 31))) != 0;
+        case DecodedProgram.QBBC:
+          return (srcValue & (1 << (op2Value & 31))) == 0;
+        default:
+          throw new IllegalStateException("Unexpected branch " + op);
+      }
+    }
+
+    /**
+     * Finds the minimal {@code k >= 1} such that {@code x0 + k * step == target (mod mod)}.
+     *
+     * @return k or {@link Long#MAX_VALUE} if the sequence never reaches the target
+     */
+    private static long firstEqual(long x0, long target, long step, long mod) {
+      long diff = (target - x0) & (mod - 1);
+      if (step == 0) {
+        return diff == 0 ? 1 : Long.MAX_VALUE;
+      }
+      int t = Long.numberOfTrailingZeros(step);
+      if (Long.numberOfTrailingZeros(diff) < t) {
+        return Long.MAX_VALUE;
+      }
+      // step = 2^t * odd, so k = (diff / 2^t) * odd^-1 (mod mod / 2^t)
+      long reducedMod = mod >>> t;
+      long k = (diff >>> t) * inverse(step >>> t) & (reducedMod - 1);
+      return k == 0 ? reducedMod : k;
+    }
+
+    /**
+     * Computes multiplicative inverse of an odd number modulo 2^64.
+     */
+    private static long inverse(long odd) {
+      long x = odd;
+      // Newton's iteration doubles the number of correct bits
+      for (int i = 0; i < 5; i++) {
+        x *= 2 - odd * x;
+      }
+      return x;
+    }
+  }
+
+  /**
+   * Branch operand: immediate, loop-invariant register field, or induction variable.
+   */
+  private static final class Operand {
+    final int index;
+    final int shift;
+    final int mask;
+    final int imm;
+    final int delta;
+
+    private Operand(int index, int shift, int mask, int imm, int delta) {
+      this.index = index;
+      this.shift = shift;
+      this.mask = mask;
+      this.imm = imm;
+      this.delta = delta;
+    }
+
+    /**
+     * Creates branch operand.
+     *
+     * @return operand or null if the operand overlaps with an induction variable
+     */
+    static Operand of(List<int[]> variables, int index, int shift, int mask, int imm) {
+      int delta = 0;
+      if (mask != 0) {
+        for (int[] v : variables) {
+          if (v[0] == index) {
+            if (v[1] != shift || v[2] != mask) {
+              return null;
+            }
+            delta = v[3] & mask;
+          }
+        }
+      }
+      return new Operand(index, shift, mask, imm, delta);
+    }
+
+    int value(Pru cpu) {
+      return cpu.readRegister(index, shift, mask) | imm;
+    }
+  }
+}
@@ -47,7 +47,7 @@ public class MemoryTransferInstruction extends Instruction {
   }
 
   public MemoryTransferInstruction encode() {
-    code = ((addrIsRegister ? 0b111 : 0b100) << 29)
+    setCode(((addrIsRegister ? 0b111 : 0b100) << 29)
         | (op == Operation.LOAD ? 1 << 28 : 0)
         | ((length & 0b1110000) << (25 - 4))
         | ((length & 0b0001110) << (13 - 1))
@@ -56,11 +56,12 @@ public class MemoryTransferInstruction extends Instruction {
         | ((offset & 0xff) << 16) // Ro
         | ((addr & 31) << 8)
         | (srcDst.field().byteOffset() << 5)
-        | srcDst.index();
+        | srcDst.index());
     return this;
   }
 
   public MemoryTransferInstruction setAddress(int addr) {
+    checkNotShared();
     assert addr >= 0 && addr <= 31 : "LBCO/SBCO constant entry should be in 0..31 range. Given " + addr;
     this.addrIsRegister = false;
     this.addr = (byte) addr;
@@ -68,6 +69,7 @@ public class MemoryTransferInstruction extends Instruction {
   }
 
   public MemoryTransferInstruction setAddress(Register addr) {
+    checkNotShared();
     assert addr.index() >= 0 && addr.index() <= 31
         && addr.field() == RegisterField.dw : "LBBO/SBBO address register should be 31 bit one. Given " + addr;
     this.addrIsRegister = true;
@@ -90,12 +92,14 @@ public class MemoryTransferInstruction extends Instruction {
   }
 
   public MemoryTransferInstruction setOffset(int offset) {
+    checkNotShared();
     this.offsetIsRegister = false;
     this.offset = (byte) offset;
     return this;
   }
 
   public MemoryTransferInstruction setOffset(Register offset) {
+    checkNotShared();
     this.offsetIsRegister = true;
     this.offset = (byte) offset.mask();
     return this;
@@ -114,12 +118,14 @@ public class MemoryTransferInstruction extends Instruction {
   }
 
   public MemoryTransferInstruction setLength(int length) {
+    checkNotShared();
     assert length >= 1 && length <= 124 : "LB/SB immediate offset should be in 1..124 range. Given " + length;
     this.length = (byte) (length - 1);
     return this;
   }
 
   public MemoryTransferInstruction setLength(RegisterField offset) {
+    checkNotShared();
     assert offset.getBitWidth() == 8 : "LB/SB register offset should be 1 byte register of R0. Given " + offset;
     this.length = (byte) (124 + offset.toMask());
     return this;
@@ -139,6 +145,27 @@ public class MemoryTransferInstruction extends Instruction {
     return RegisterField.ofMask(length - 124);
   }
 
+  /**
+   * Returns {@link Register#mask()} of LBBO/SBBO address register.
+   */
+  int getAddressMask() {
+    return addr | RegisterField.dw.toMask() << 5;
+  }
+
+  /**
+   * Returns {@link Register#mask()} of the offset register.
+   */
+  int getOffsetMask() {
+    return offset & 0xff;
+  }
+
+  /**
+   * Returns {@link Register#mask()} of R0 field that holds burst length.
+   */
+  int getLengthMask() {
+    return getLengthField().toMask() << 5;
+  }
+
   @Override
   public String toString() {
     return (op == Operation.LOAD ? "LB" : "SB") +
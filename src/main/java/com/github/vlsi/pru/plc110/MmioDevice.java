@@ -0,0 +1,25 @@
+package com.github.vlsi.pru.plc110;
+
+/**
+ * Device that is mapped to the data address space of {@link Pru}, see
+ * {@link Pru#mapDevice(int, int, MmioDevice)}. Offsets are relative to the start of
+ * the device region, and wider accesses are split into bytes in ascending address order.
+ */
+public interface MmioDevice {
+  /**
+   * Called before the bytes of a single transfer are accessed, so the device can sample
+   * its state once per transfer.
+   */
+  default void beginTransfer() {
+  }
+
+  /**
+   * Called after the bytes of a single transfer are accessed.
+   */
+  default void endTransfer() {
+  }
+
+  byte read(int offset);
+
+  void write(int offset, byte value);
+}
@@ -0,0 +1,150 @@
+package com.github.vlsi.pru.plc110;
+
+import com.github.vlsi.pru.plc110.debug.RegisterVariableLocation;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable program that can be shared by any number of {@link Pru} instances on any threads.
+ * The program is stored as encoded instruction words, instructions are interned within the
+ * program, and comments and variable locations are kept in side tables.
+ * <p>The words are decoded strictly, so a word that is not a valid instruction fails
+ * with {@link IllegalArgumentException}.
+ */
+public final class Program {
+  private final int[] code;
+  private final List<Instruction> instructions;
+  private final String[] comments;
+  private final List<RegisterVariableLocation> varLocations;
+  // Decoded forms depend on cpuId via constant table, so PRU0 and PRU1 are cached separately
+  private volatile DecodedProgram decodedPru0;
+  private volatile DecodedProgram decodedPru1;
+
+  private Program(int[] code, String[] comments, List<RegisterVariableLocation> varLocations) {
+    this.code = code;
+    this.instructions = Collections.unmodifiableList(decode(code, comments));
+    this.comments = comments;
+    this.varLocations = Collections.unmodifiableList(varLocations);
+  }
+
+  public static Program of(int[] code) {
+    return new Program(code.clone(), new String[code.length],
+        Collections.<RegisterVariableLocation>emptyList());
+  }
+
+  public static Program of(List<Instruction> instructions) {
+    return of(instructions, Collections.<RegisterVariableLocation>emptyList());
+  }
+
+  public static Program of(BinaryCode code) {
+    return of(code.getInstructions(), code.getVarLocations());
+  }
+
+  private static Program of(List<Instruction> instructions,
+                            List<RegisterVariableLocation> varLocations) {
+    int size = instructions.size();
+    int[] code = new int[size];
+    String[] comments = new String[size];
+    for (int i = 0; i < size; i++) {
+      Instruction ins = instructions.get(i);
+      code[i] = ins.getCode();
+      comments[i] = ins.getComment();
+    }
+    // Labels are mutable, so the locations are copied
+    List<RegisterVariableLocation> locations = new ArrayList<>(varLocations.size());
+    for (RegisterVariableLocation loc : varLocations) {
+      locations.add(new RegisterVariableLocation(loc.name, loc.typeName,
+          new Label(loc.name + "_start").setAbsoluteOffset(loc.start.getAbsoluteOffset()),
+          new Label(loc.name + "_end").setAbsoluteOffset(loc.end.getAbsoluteOffset()),
+          loc.register));
+    }
+    return new Program(code, comments, locations);
+  }
+
+  private static List<Instruction> decode(int[] code, String[] comments) {
+    ByteBuffer bb = ByteBuffer.allocate(code.length * 4);
+    bb.asIntBuffer().put(code);
+    List<Instruction> res = new Decoder().decode(bb);
+    Map<Integer, Instruction> interned = new HashMap<>();
+    for (int i = 0; i < code.length; i++) {
+      Instruction ins = res.get(i);
+      if (comments[i] != null) {
+        // Commented instructions are not interned, so getInstructions() keeps the comments
+        ins.setComment(comments[i]);
+      } else {
+        Instruction prev = interned.putIfAbsent(code[i], ins);
+        if (prev != null) {
+          res.set(i, prev);
+          continue;
+        }
+      }
+      ins.share();
+    }
+    return res;
+  }
+
+  public int size() {
+    return code.length;
+  }
+
+  /**
+   * Returns 64-bit FNV-1a hash of the encoded instructions.
+   */
+  public long getHash() {
+    long hash = 0xcbf29ce484222325L;
+    for (int word : code) {
+      for (int i = 0; i < 32; i += 8) {
+        hash = (hash ^ (word >>> i & 0xff)) * 0x100000001b3L;
+      }
+    }
+    return hash;
+  }
+
+  /**
+   * Returns a copy of encoded instructions.
+   */
+  public int[] getCode() {
+    return code.clone();
+  }
+
+  /**
+   * Returns shared instructions, see {@link Instruction#isShared()}. The instructions
+   * that have comments are copies of the given ones, and the rest are interned.
+   */
+  public List<Instruction> getInstructions() {
+    return instructions;
+  }
+
+  /**
+   * Returns the comment of the instruction at given pc, or null if the instruction has
+   * no comment.
+   */
+  public String getComment(int pc) {
+    return comments[pc];
+  }
+
+  List<RegisterVariableLocation> getVarLocations() {
+    return varLocations;
+  }
+
+  DecodedProgram decoded(int cpuId) {
+    // The race is benign: concurrent callers decode the same immutable program
+    if (cpuId == 0) {
+      DecodedProgram res = decodedPru0;
+      if (res == null) {
+        decodedPru0 = res = DecodedProgram.decode(instructions, cpuId);
+      }
+      return res;
+    }
+    DecodedProgram res = decodedPru1;
+    if (res == null) {
+      decodedPru1 = res = DecodedProgram.decode(instructions, cpuId);
+    }
+    return res;
+  }
+}
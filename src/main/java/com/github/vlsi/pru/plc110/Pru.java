@@ -2,69 +2,260 @@ package com.github.vlsi.pru.plc110;
 
 import com.github.vlsi.pru.plc110.debug.RegisterVariableLocation;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.util.ArrayList;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
 import java.util.List;
 
 public class Pru {
-  private final static int PRU0_CONTROL_REGISTERS = 0x7000;
-
-  private final ByteBuffer ram =
-      ByteBuffer.allocate(0x7bff)
-          .order(ByteOrder.LITTLE_ENDIAN);
+  // Paged, so fork() shares the pages copy-on-write
+  private DataMemory memory = new DataMemory();
+  private final ControlRegisters control = new ControlRegisters(this);
+  // Kept apart from the memory, so restore() keeps the mapping of the cpu
+  private ExternalMemory external;
+  private int externalAddress;
+  // File mapping that holds ram(), null unless shareRam() was called
+  private MappedByteBuffer sharedRam;
+  // True if the memory is shared with the other core of PruSubsystem
+  private boolean attached;
+  // Non-null while PruSubsystem runs the cores on separate threads
+  CoreSync sync;
 
   private final static int TOTAL_REGISTERS = 32;
 
-  // Byte order is b0, b1, b2, b3, b0, ...
-  private final ByteBuffer registers =
-      ByteBuffer.allocate(TOTAL_REGISTERS * 4)
-          .order(ByteOrder.LITTLE_ENDIAN);
+  // Bit shift and bit mask of a register field, indexed by Register#mask()
+  private final static int[] FIELD_SHIFT = new int[256];
+  private final static int[] FIELD_MASK = new int[256];
+
+  static {
+    for (int mask = 0; mask < 256; mask++) {
+      RegisterField field = RegisterField.ofMask(mask >>> 5);
+      FIELD_SHIFT[mask] = field.byteOffset() * 8;
+      FIELD_MASK[mask] = field.getBitMask();
+    }
+  }
 
-  private final ByteBuffer registersView = registers.duplicate().order(ByteOrder.LITTLE_ENDIAN);
-  private final ByteBuffer ramView = ram.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+  // b0 is the least significant byte, so byte offset in the register file is index * 4 + b
+  final int[] registers = new int[TOTAL_REGISTERS];
 
-  private final ByteBuffer cycleCountReg
-      = ((ByteBuffer) ram.duplicate()
-      .position(PRU0_CONTROL_REGISTERS + 0xC)
-      .limit(PRU0_CONTROL_REGISTERS + 0xC + 4))
-      .slice().order(ByteOrder.LITTLE_ENDIAN);
+  private Program program = Program.of(new int[0]);
+  List<Instruction> instructionStream = program.getInstructions();
+  private DecodedProgram decoded = DecodedProgram.EMPTY;
+  private BlockCompiler compiler;
+  private ThreadedCode.Op[] threadedCode;
+  private Superinstructions superinstructions;
+  private TraceCompiler tracer;
+  private final Tiering tiering;
+  private LoopAccelerator loopAccelerator;
+  private boolean loopAcceleration = true;
+  private final int[] carryBox = new int[1];
+  private final int[] traceState = new int[2];
 
-  private List<Instruction> instructionStream = new ArrayList<>();
-  private BinaryCode code;
+  // Kind of the last carry-producing operation. Carry is computed from carryA and carryB only
+  // when it is read, see carry(). CARRY_VALUE means carry field holds the actual value
+  private static final int CARRY_VALUE = 0;
+  private static final int CARRY_ADD = 1;
+  private static final int CARRY_SUB = 2;
+  private static final int CARRY_RSB = 3;
 
-  private int carry;
-  private int pc;
+  // Use carry() and setCarry(int) unless carryOp is known to be CARRY_VALUE.
+  // ExecutionMode.CLOSURE always keeps the actual value
+  int carry;
+  private int carryOp;
+  private int carryA;
+  private int carryB;
+  int pc;
 
-  private int cycleCount;
-  private int cycleCountNonReset;
-  private int memoryTransferCyclesLeft;
-  private int memoryTransferStarted;
+  int cycleCount;
+  int cycleCountNonReset;
+  int memoryTransferCyclesLeft;
+  int memoryTransferStarted;
+  // True while the program transfers memory, so CYCLE reads the cycle the transfer started
+  private boolean transferring;
 
   public final int cpuId;
+  private final ExecutionMode mode;
 
   public Pru() {
     this(0);
   }
 
   public Pru(int cpuId) {
+    this(cpuId, ExecutionMode.PREDECODED);
+  }
+
+  public Pru(ExecutionMode mode) {
+    this(0, mode);
+  }
+
+  public Pru(int cpuId, ExecutionMode mode) {
     this.cpuId = cpuId;
+    this.mode = mode;
+    this.tiering = mode == ExecutionMode.TIERED ? new Tiering() : null;
+    memory.mapControlRegisters(cpuId, control);
+  }
+
+  public ExecutionMode getExecutionMode() {
+    return mode;
+  }
+
+  public boolean isLoopAcceleration() {
+    return loopAcceleration;
+  }
+
+  /**
+   * Enables or disables fast-forwarding of delay and busy-wait loops in {@link #run(int)} and
+   * {@link #runTillHalt(int)}. The acceleration is enabled by default, and it is not used in
+   * {@link ExecutionMode#INTERPRETER} and {@link ExecutionMode#CLOSURE} modes.
+   */
+  public void setLoopAcceleration(boolean loopAcceleration) {
+    this.loopAcceleration = loopAcceleration;
+  }
+
+  /**
+   * Returns block counters and tier control of {@link ExecutionMode#TIERED} mode.
+   *
+   * @return tiering or null if the mode is not {@link ExecutionMode#TIERED}
+   */
+  public Tiering getTiering() {
+    return tiering;
   }
 
   public int runTillHalt(int timeout) {
     int maxPc = instructionStream.size();
-    for (int time = 0; time < timeout; time++) {
+    for (int time = 0; time < timeout; ) {
       if (pc == maxPc) {
         return time;
       }
-      tick();
+      time += step(timeout - time);
     }
     throw new IllegalStateException(
         "Unable to finish execution in " + timeout + " ticks. " + printState());
   }
 
+  /**
+   * Executes given number of cycles. The result is the same as calling {@link #tick()}
+   * {@code cycles} times, however {@link ExecutionMode#COMPILED} and
+   * {@link ExecutionMode#TRACING} execute whole blocks or loop iterations at once,
+   * and {@link ExecutionMode#CLOSURE} executes frequent instruction sequences at once.
+   *
+   * @param cycles number of cycles to execute
+   */
+  public void run(int cycles) {
+    Superinstructions superinstructions = this.superinstructions;
+    if (superinstructions != null) {
+      superinstructions.run(this, cycles);
+      return;
+    }
+    while (cycles > 0) {
+      cycles -= step(cycles);
+    }
+  }
+
+  /**
+   * Executes given number of cycles, or less if the program ends earlier.
+   *
+   * @return the number of executed cycles
+   */
+  int runOrHalt(int cycles) {
+    int maxPc = instructionStream.size();
+    int time = 0;
+    while (time < cycles && pc != maxPc) {
+      time += step(cycles - time);
+    }
+    return time;
+  }
+
+  /**
+   * Executes at least one cycle.
+   *
+   * @param maxCycles the maximum number of cycles to execute
+   * @return the number of executed cycles
+   */
+  private int step(int maxCycles) {
+    Superinstructions superinstructions = this.superinstructions;
+    if (superinstructions != null) {
+      return superinstructions.step(this, maxCycles);
+    }
+    LoopAccelerator loopAccelerator = this.loopAccelerator;
+    if (loopAccelerator != null && loopAcceleration) {
+      int cycles = loopAccelerator.run(this, maxCycles);
+      if (cycles != 0) {
+        return cycles;
+      }
+    }
+    TraceCompiler tracer = this.tracer;
+    if (tracer != null) {
+      CompiledTrace trace = tracer.getTrace(pc);
+      if (trace != null && trace.length <= maxCycles) {
+        traceState[0] = carry();
+        traceState[1] = maxCycles;
+        pc = trace.execute(registers, traceState);
+        setCarry(traceState[0]);
+        int cycles = traceState[1];
+        cycleCount += cycles;
+        cycleCountNonReset += cycles;
+        return cycles;
+      }
+      int from = pc;
+      tick();
+      tracer.afterTick(from, pc);
+      return 1;
+    }
+    Tiering tiering = this.tiering;
+    if (tiering != null) {
+      int length = tiering.getBlockLength(pc);
+      if (length != 0 && length <= maxCycles) {
+        CompiledBlock block = tiering.enter(pc);
+        if (block == null) {
+          for (int i = 0; i < length; i++) {
+            tickDecoded();
+          }
+          return length;
+        }
+        carryBox[0] = carry();
+        pc = block.execute(registers, carryBox);
+        setCarry(carryBox[0]);
+        cycleCount += length;
+        cycleCountNonReset += length;
+        return length;
+      }
+      tick();
+      return 1;
+    }
+    BlockCompiler compiler = this.compiler;
+    if (compiler != null) {
+      int length = compiler.blockLength(pc);
+      if (length != 0 && length <= maxCycles) {
+        CompiledBlock block = compiler.getBlock(pc);
+        carryBox[0] = carry();
+        pc = block.execute(registers, carryBox);
+        setCarry(carryBox[0]);
+        cycleCount += length;
+        cycleCountNonReset += length;
+        return length;
+      }
+    }
+    tick();
+    return 1;
+  }
+
   public void tick() {
+    ThreadedCode.Op[] threadedCode = this.threadedCode;
+    if (threadedCode != null) {
+      cycleCount++;
+      cycleCountNonReset++;
+      threadedCode[pc].execute(this);
+      return;
+    }
+    if (mode != ExecutionMode.INTERPRETER) {
+      tickDecoded();
+      return;
+    }
     Instruction ins = instructionStream.get(pc);
     cycleCount++;
     cycleCountNonReset++;
@@ -85,7 +276,7 @@ public class Pru {
         // Return address is stored for JAL only
         setReg(jmp.dstRegister, pc + 1);
       }
-      pc = getOp2(jmp.op2, jmp.op2IsRegister);
+      pc = getOp2(jmp.getOp2(), jmp.op2IsRegister);
       return;
     }
     if (ins instanceof LeftMostBitDetectInstruction) {
@@ -113,97 +304,337 @@ public class Pru {
     throw new IllegalStateException("Unsupported instruction " + ins);
   }
 
-  private void prepareMemoryTransfer(MemoryTransferInstruction ins) {
-    int length;
-    if (ins.lengthIsRegister()) {
-      length = getReg(new Register(0, ins.getLengthField()));
-    } else {
-      length = ins.getLengthByte();
+  private void tickDecoded() {
+    int[] c = decoded.code;
+    int p = pc * DecodedProgram.STRIDE;
+    int op = c[p + DecodedProgram.OP];
+    cycleCount++;
+    cycleCountNonReset++;
+    switch (op) {
+      case DecodedProgram.ADD: {
+        int op2 = readOp2(c, p);
+        int res = (readSrc(c, p) + op2) & c[p + DecodedProgram.DST_MASK];
+        lazyCarry(CARRY_ADD, res, op2);
+        writeDst(c, p, res);
+        break;
+      }
+      case DecodedProgram.ADC: {
+        int op2 = readOp2(c, p);
+        int carry = carry();
+        int res = (readSrc(c, p) + op2 + carry) & c[p + DecodedProgram.DST_MASK];
+        this.carry = (Integer.compareUnsigned(res, op2) - carry) >>> 31;
+        writeDst(c, p, res);
+        break;
+      }
+      case DecodedProgram.SUB: {
+        int src = readSrc(c, p);
+        int op2 = readOp2(c, p);
+        lazyCarry(CARRY_SUB, src, op2);
+        writeDst(c, p, src - op2);
+        break;
+      }
+      case DecodedProgram.SUC: {
+        long resLong = Integer.toUnsignedLong(readSrc(c, p)) - readOp2(c, p) - carry();
+        carry = resLong < 0 ? 1 : 0;
+        writeDst(c, p, (int) resLong);
+        break;
+      }
+      case DecodedProgram.LSL:
+        writeDst(c, p, readSrc(c, p) << (readOp2(c, p) & 0x1f));
+        break;
+      case DecodedProgram.LSR:
+        writeDst(c, p, readSrc(c, p) >>> (readOp2(c, p) & 0x1f));
+        break;
+      case DecodedProgram.RSB: {
+        int src = readSrc(c, p);
+        int op2 = readOp2(c, p);
+        lazyCarry(CARRY_RSB, src, op2);
+        writeDst(c, p, op2 - src);
+        break;
+      }
+      case DecodedProgram.RSC: {
+        long resLong = readOp2(c, p) - Integer.toUnsignedLong(readSrc(c, p)) - carry();
+        carry = resLong < 0 ? 1 : 0;
+        writeDst(c, p, (int) resLong);
+        break;
+      }
+      case DecodedProgram.AND:
+        writeDst(c, p, readSrc(c, p) & readOp2(c, p));
+        break;
+      case DecodedProgram.OR:
+        writeDst(c, p, readSrc(c, p) | readOp2(c, p));
+        break;
+      case DecodedProgram.XOR:
+        writeDst(c, p, readSrc(c, p) ^ readOp2(c, p));
+        break;
+      case DecodedProgram.NOT:
+        writeDst(c, p, ~readSrc(c, p));
+        break;
+      case DecodedProgram.MIN:
+        writeDst(c, p, Math.min(readSrc(c, p), readOp2(c, p)));
+        break;
+      case DecodedProgram.MAX:
+        writeDst(c, p, Math.max(readSrc(c, p), readOp2(c, p)));
+        break;
+      case DecodedProgram.CLR:
+        writeDst(c, p, readSrc(c, p) & ~(1 << (readOp2(c, p) & 0x1f)));
+        break;
+      case DecodedProgram.SET:
+        writeDst(c, p, readSrc(c, p) | (1 << (readOp2(c, p) & 0x1f)));
+        break;
+      case DecodedProgram.LDI:
+        writeDst(c, p, c[p + DecodedProgram.OP2_IMM]);
+        break;
+      case DecodedProgram.JAL:
+        // Return address is stored for JAL only
+        writeDst(c, p, pc + 1);
+        pc = readOp2(c, p);
+        return;
+      case DecodedProgram.JMP:
+        pc = readOp2(c, p);
+        return;
+      case DecodedProgram.LMBD: {
+        int src = readSrc(c, p);
+        if ((readOp2(c, p) & 1) == 0) {
+          src ^= c[p + DecodedProgram.SRC_MASK];
+        }
+        int res = 31 - Integer.numberOfLeadingZeros(src);
+        writeDst(c, p, res < 0 ? 32 : res);
+        break;
+      }
+      case DecodedProgram.QBNEVER:
+        break;
+      case DecodedProgram.QBLT:
+        if (Integer.compareUnsigned(readOp2(c, p), readSrc(c, p)) < 0) {
+          pc = c[p + DecodedProgram.TARGET];
+          return;
+        }
+        break;
+      case DecodedProgram.QBEQ:
+        if (readOp2(c, p) == readSrc(c, p)) {
+          pc = c[p + DecodedProgram.TARGET];
+          return;
+        }
+        break;
+      case DecodedProgram.QBLE:
+        if (Integer.compareUnsigned(readOp2(c, p), readSrc(c, p)) <= 0) {
+          pc = c[p + DecodedProgram.TARGET];
+          return;
+        }
+        break;
+      case DecodedProgram.QBGT:
+        if (Integer.compareUnsigned(readOp2(c, p), readSrc(c, p)) > 0) {
+          pc = c[p + DecodedProgram.TARGET];
+          return;
+        }
+        break;
+      case DecodedProgram.QBNE:
+        if (readOp2(c, p) != readSrc(c, p)) {
+          pc = c[p + DecodedProgram.TARGET];
+          return;
+        }
+        break;
+      case DecodedProgram.QBGE:
+        if (Integer.compareUnsigned(readOp2(c, p), readSrc(c, p)) >= 0) {
+          pc = c[p + DecodedProgram.TARGET];
+          return;
+        }
+        break;
+      case DecodedProgram.QBA:
+        pc = c[p + DecodedProgram.TARGET];
+        return;
+      case DecodedProgram.QBBS:
+        if ((readSrc(c, p) & (1 << (readOp2(c, p) & 31))) != 0) {
+          pc = c[p + DecodedProgram.TARGET];
+          return;
+        }
+        break;
+      case DecodedProgram.QBBC:
+        if ((readSrc(c, p) & (1 << (readOp2(c, p) & 31))) == 0) {
+          pc = c[p + DecodedProgram.TARGET];
+          return;
+        }
+        break;
+      case DecodedProgram.LOAD:
+      case DecodedProgram.STORE:
+        if (memoryTransferCyclesLeft == 0) {
+          memoryTransferStarted = cycleCount;
+          memoryTransferCyclesLeft = memoryTransferCycles(op == DecodedProgram.LOAD,
+              readOperand(c, p + DecodedProgram.LEN));
+          return;
+        }
+        memoryTransferCyclesLeft--;
+        if (memoryTransferCyclesLeft == 0) {
+          transferMemory(op == DecodedProgram.LOAD,
+              c[p + DecodedProgram.DST],
+              readSrc(c, p) | c[p + DecodedProgram.ADDR_IMM],
+              readOp2(c, p),
+              readOperand(c, p + DecodedProgram.LEN),
+              instructionStream.get(pc));
+          pc++;
+        }
+        return;
+      default:
+        throw new IllegalStateException("Unsupported instruction " + instructionStream.get(pc));
     }
+    pc++;
+  }
 
-    memoryTransferCyclesLeft = (length + 1) / 2;
-    int offset;
-    if (ins.offsetIsRegister()) {
-      offset = getReg(ins.getOffsetRegister());
-    } else {
-      offset = ins.getOffsetImm();
+  private int readSrc(int[] c, int p) {
+    return readRegister(c[p + DecodedProgram.SRC], c[p + DecodedProgram.SRC_SHIFT],
+        c[p + DecodedProgram.SRC_MASK]);
+  }
+
+  private int readOp2(int[] c, int p) {
+    return readOperand(c, p + DecodedProgram.OP2);
+  }
+
+  private int readOperand(int[] c, int offset) {
+    return readRegister(c[offset], c[offset + 1], c[offset + 2]) | c[offset + 3];
+  }
+
+  private void writeDst(int[] c, int p, int value) {
+    writeRegister(c[p + DecodedProgram.DST], c[p + DecodedProgram.DST_SHIFT],
+        c[p + DecodedProgram.DST_MASK], value);
+  }
+
+  private void lazyCarry(int op, int a, int b) {
+    carryOp = op;
+    carryA = a;
+    carryB = b;
+  }
+
+  /**
+   * Returns carry flag, and computes it if the last carry-producing operation was recorded
+   * lazily.
+   */
+  int carry() {
+    switch (carryOp) {
+      case CARRY_VALUE:
+        return carry;
+      case CARRY_ADD:
+        // ADD: carryA is the result, carryB is op2, overflow happened when res < op2
+        carry = Integer.compareUnsigned(carryA, carryB) >>> 31;
+        break;
+      case CARRY_SUB:
+        carry = Integer.toUnsignedLong(carryA) - carryB < 0 ? 1 : 0;
+        break;
+      default:
+        carry = carryB - Integer.toUnsignedLong(carryA) < 0 ? 1 : 0;
+        break;
     }
+    carryOp = CARRY_VALUE;
+    return carry;
+  }
+
+  void setCarry(int carry) {
+    this.carry = carry;
+    carryOp = CARRY_VALUE;
+  }
+
+  int readRegister(int index, int shift, int mask) {
+    return (registers[index] >>> shift) & mask;
+  }
+
+  void writeRegister(int index, int shift, int mask, int value) {
+    registers[index] = registers[index] & ~(mask << shift) | (value & mask) << shift;
+  }
 
-    if (ins.op == MemoryTransferInstruction.Operation.LOAD) {
+  private int readRegister(int registerMask) {
+    return readRegister(registerMask & 31, FIELD_SHIFT[registerMask], FIELD_MASK[registerMask]);
+  }
+
+  private int getLength(MemoryTransferInstruction ins) {
+    return ins.lengthIsRegister() ? readRegister(ins.getLengthMask()) : ins.getLengthByte();
+  }
+
+  private void prepareMemoryTransfer(MemoryTransferInstruction ins) {
+    memoryTransferCyclesLeft =
+        memoryTransferCycles(ins.op == MemoryTransferInstruction.Operation.LOAD, getLength(ins));
+  }
+
+  static int memoryTransferCycles(boolean load, int length) {
+    int cycles = (length + 1) / 2;
+    if (load) {
       if (length <= 2) {
-        memoryTransferCyclesLeft++;
+        cycles++;
       }
-      memoryTransferCyclesLeft++; // If offset is non-zero, then one cycle is spent on addition
+      cycles++; // If offset is non-zero, then one cycle is spent on addition
     }
+    return cycles;
   }
 
   private void execMemoryTransfer(MemoryTransferInstruction ins) {
-    cycleCountReg.putInt(0, memoryTransferStarted);
     int address;
 
     if (ins.addressIsRegister()) {
-      address = getReg(ins.getAddress());
+      address = readRegister(ins.getAddressMask());
     } else {
-      byte addrConst = ins.getAddressEntry();
-      switch (addrConst) {
-        case 3: // PRU0/1 Local Data
-          address = cpuId == 0 ? 0x00000000 : 0x00002000;
-          break;
-        case 4: // PRU1/0 Local Data
-          address = cpuId == 0 ? 0x00002000 : 0x00000000;
-          break;
-        default:
-          throw new IllegalArgumentException(
-              "Not implemented address entry " + addrConst + " for " + ins);
-      }
+      address = DecodedProgram.constantAddress(ins.getAddressEntry(), cpuId);
     }
 
-    int offset;
-    if (ins.offsetIsRegister()) {
-      offset = getReg(ins.getOffsetRegister());
-    } else {
-      offset = ins.getOffsetImm();
+    int offset = ins.offsetIsRegister() ? readRegister(ins.getOffsetMask()) : ins.getOffsetImm();
+
+    transferMemory(ins.op == MemoryTransferInstruction.Operation.LOAD,
+        getRegOffset(ins.srcDst), address, offset, getLength(ins), ins);
+  }
+
+  void transferMemory(boolean load, int regOffs, int address, int offset, int length,
+                      Instruction ins) {
+    DataMemory memory = this.memory;
+    int ramOffs = address + offset;
+    int end = regOffs + length;
+    if (regOffs < 0 || end > TOTAL_REGISTERS * 4
+        || !memory.isMapped(ramOffs, length)) {
+      throw new IllegalStateException(
+          "Invalid memory access at instruction " + ins + ", registers " + regOffs + ".." + end
+              + ", memory " + ramOffs + ".." + (ramOffs + length)
+              + ", cpu state: " + printState());
     }
 
-    int length;
-    if (ins.lengthIsRegister()) {
-      length = getReg(new Register(0, ins.getLengthField()));
+    CoreSync sync = this.sync;
+    if (sync != null) {
+      sync.beforeTransfer(this, ramOffs, length);
+    }
+    transferring = true;
+    memory.beginTransfer(ramOffs, length);
+    // Unaligned head and tail are copied byte by byte, and the rest is copied by whole registers
+    int delta = ramOffs - regOffs;
+    int i = regOffs;
+    for (; i < end && (i & 3) != 0; i++) {
+      transferByte(load, i, i + delta);
+    }
+    int[] registers = this.registers;
+    if (load) {
+      for (; i + 4 <= end; i += 4) {
+        registers[i >> 2] = memory.getInt(i + delta);
+      }
     } else {
-      length = ins.getLengthByte();
+      for (; i + 4 <= end; i += 4) {
+        memory.putInt(i + delta, registers[i >> 2]);
+      }
+    }
+    for (; i < end; i++) {
+      transferByte(load, i, i + delta);
     }
 
-    try {
-      int regOffs = getRegOffset(ins.srcDst);
-      registersView.limit(regOffs + length);
-      registersView.position(regOffs);
+    memory.endTransfer(ramOffs, length);
+    transferring = false;
+    control.stall(memoryTransferCycles(load, length));
+  }
 
-      int ramOffs = address + offset;
-      ramView.limit(ramOffs + length);
-      ramView.position(ramOffs);
+  /**
+   * Returns the value of CYCLE control register: a transfer reads the cycle it started at.
+   */
+  int cycleRegister() {
+    return transferring ? memoryTransferStarted : cycleCount;
+  }
 
-      if (ins.op == MemoryTransferInstruction.Operation.LOAD) {
-        registersView.put(ramView);
-      } else {
-        ramView.put(registersView);
-      }
-    } catch (IllegalArgumentException e) {
-      throw new IllegalStateException(
-          "Invalid memory access at instruction " + ins + ", cpu state: " + printState(), e);
-    }
-
-    if (ins.op == MemoryTransferInstruction.Operation.STORE) {
-      int insLength = cycleCount - memoryTransferStarted;
-      int anInt = cycleCountReg.getInt(0);
-      if (anInt != memoryTransferStarted) {
-        cycleCount = anInt + 1;//+(cycleCount-memoryTransferStarted-2);
-//        cycleCount += 4;
-//         counter updated
-      } else {
-//        cycleCount--;
-//         counter not updated
-      }
-//    cycleCount = cycleCountReg.getInt(0);
-//      cycleCount = anInt;
+  private void transferByte(boolean load, int regOffs, int ramOffs) {
+    if (load) {
+      writeRegister(regOffs >> 2, (regOffs & 3) << 3, 0xff, memory.get(ramOffs));
+    } else {
+      memory.put(ramOffs, (byte) readRegister(regOffs >> 2, (regOffs & 3) << 3, 0xff));
     }
   }
 
@@ -221,7 +652,7 @@ public class Pru {
 
   private int getOp2(int op2, boolean op2IsRegister) {
     if (op2IsRegister) {
-      return getReg(Register.ofMask(op2));
+      return readRegister(op2);
     }
     return op2;
   }
@@ -235,24 +666,24 @@ public class Pru {
       case ADD: {
         res = (src + op2) & resMask;
         // When res is less than op2, then overflow happened
-        carry = Integer.compareUnsigned(res, op2) >>> 31;
+        lazyCarry(CARRY_ADD, res, op2);
         break;
       }
       case ADC: {
+        int carry = carry();
         res = (src + op2 + carry) & resMask;
         // When res is less than op2, or res is equal to op2 and was carry
         // then overflow happened
-        carry = (Integer.compareUnsigned(res, op2) - carry) >>> 31;
+        this.carry = (Integer.compareUnsigned(res, op2) - carry) >>> 31;
         break;
       }
       case SUB: {
-        long resLong = Integer.toUnsignedLong(src) - op2;
-        res = (int) (resLong & resMask);
-        carry = resLong < 0 ? 1 : 0;
+        res = (src - op2) & resMask;
+        lazyCarry(CARRY_SUB, src, op2);
         break;
       }
       case SUC: {
-        long resLong = Integer.toUnsignedLong(src) - op2 - carry;
+        long resLong = Integer.toUnsignedLong(src) - op2 - carry();
         res = (int) (resLong & resMask);
         carry = resLong < 0 ? 1 : 0;
         break;
@@ -264,13 +695,12 @@ public class Pru {
         res = src >>> (op2 & 0x1f);
         break;
       case RSB: {
-        long resLong = op2 - Integer.toUnsignedLong(src);
-        res = (int) (resLong & resMask);
-        carry = resLong < 0 ? 1 : 0;
+        res = (op2 - src) & resMask;
+        lazyCarry(CARRY_RSB, src, op2);
         break;
       }
       case RSC: {
-        long resLong = op2 - Integer.toUnsignedLong(src) - carry;
+        long resLong = op2 - Integer.toUnsignedLong(src) - carry();
         res = (int) (resLong & resMask);
         carry = resLong < 0 ? 1 : 0;
         break;
@@ -334,12 +764,11 @@ public class Pru {
         return pc + 1;
       }
     }
-    return pc + ins.offset;
+    return pc + ins.getOffset();
   }
 
   public void setInstructions(List<Instruction> instructions) {
-    instructionStream.clear();
-    instructionStream.addAll(instructions);
+    setProgram(Program.of(instructions));
   }
 
   public void setInstructions(Instruction... instructions) {
@@ -347,9 +776,127 @@ public class Pru {
   }
 
   public void setCode(BinaryCode code) {
-    this.code = code;
-    instructionStream.clear();
-    instructionStream.addAll(code.getInstructions());
+    setProgram(Program.of(code));
+  }
+
+  /**
+   * Loads the program. The program is not copied, so the same program can be loaded to any
+   * number of cpus.
+   */
+  public void setProgram(Program program) {
+    this.program = program;
+    instructionStream = program.getInstructions();
+    decode();
+  }
+
+  public Program getProgram() {
+    return program;
+  }
+
+  private void decode() {
+    if (mode == ExecutionMode.INTERPRETER) {
+      return;
+    }
+    decoded = program.decoded(cpuId);
+    if (mode == ExecutionMode.COMPILED) {
+      compiler = new BlockCompiler(decoded);
+    }
+    if (mode == ExecutionMode.CLOSURE) {
+      threadedCode = ThreadedCode.compile(decoded, instructionStream);
+      superinstructions = new Superinstructions(decoded, threadedCode);
+    }
+    if (mode == ExecutionMode.TRACING) {
+      tracer = new TraceCompiler(decoded);
+    }
+    if (tiering != null) {
+      tiering.setProgram(decoded);
+    }
+    if (mode != ExecutionMode.CLOSURE) {
+      loopAccelerator = LoopAccelerator.analyze(decoded);
+    }
+  }
+
+  /**
+   * Returns the cpu to the state of a new instance that has the same program loaded:
+   * registers, data RAM, pc, carry and cycle counters are cleared. Only the RAM pages written
+   * since the previous reset are cleared, unless the RAM was accessed via {@link #ram()}.
+   * Settings like {@link #setLoopAcceleration(boolean)} and the caches of the compiled code
+   * are kept.
+   */
+  public void reset() {
+    Arrays.fill(registers, 0);
+    memory.clear();
+    control.reset();
+    pc = 0;
+    setCarry(0);
+    cycleCount = 0;
+    cycleCountNonReset = 0;
+    memoryTransferCyclesLeft = 0;
+    memoryTransferStarted = 0;
+  }
+
+  /**
+   * Captures the state of the cpu. The data RAM is shared copy-on-write, so the snapshot is
+   * cheap to create.
+   */
+  public PruSnapshot snapshot() {
+    return new PruSnapshot(registers.clone(), memory.fork(), control.save(), pc, carry(),
+        cycleCount, cycleCountNonReset, memoryTransferCyclesLeft, memoryTransferStarted);
+  }
+
+  /**
+   * Returns the cpu to the captured state. The program, execution mode and settings are
+   * not part of the snapshot, so they are kept.
+   */
+  public void restore(PruSnapshot snapshot) {
+    if (attached) {
+      throw new IllegalStateException("Pru " + cpuId
+          + " shares memory with the other core of PruSubsystem, so it cannot be restored alone");
+    }
+    if (snapshot.memory.size() != memory.size()) {
+      throw new IllegalArgumentException("Snapshot RAM size " + snapshot.memory.size()
+          + " does not match cpu RAM size " + memory.size());
+    }
+    System.arraycopy(snapshot.registers, 0, registers, 0, TOTAL_REGISTERS);
+    DataMemory previous = memory;
+    memory = snapshot.memory.fork();
+    memory.mapControlRegisters(cpuId, control);
+    memory.mapExternal(externalAddress, external);
+    // The views returned by ram(), including the shared file, stay live
+    memory.takeWindow(previous);
+    control.load(snapshot.controlRegisters);
+    pc = snapshot.pc;
+    setCarry(snapshot.carry);
+    cycleCount = snapshot.cycleCount;
+    cycleCountNonReset = snapshot.cycleCountNonReset;
+    memoryTransferCyclesLeft = snapshot.memoryTransferCyclesLeft;
+    memoryTransferStarted = snapshot.memoryTransferStarted;
+  }
+
+  /**
+   * Writes the state of the cpu to a checkpoint file, see {@link Checkpoint}.
+   */
+  public void saveCheckpoint(Path file) throws IOException {
+    Checkpoint.write(file, program, snapshot());
+  }
+
+  /**
+   * Restores the state from a checkpoint file that was written for the same program.
+   */
+  public void loadCheckpoint(Path file) throws IOException {
+    restore(Checkpoint.read(file, program));
+  }
+
+  /**
+   * Makes the cpu use the memory of {@link PruSubsystem}.
+   */
+  void attach(DataMemory memory) {
+    this.memory = memory;
+    attached = true;
+  }
+
+  ControlRegisters controlRegisters() {
+    return control;
   }
 
   public void setPc(int pc) {
@@ -368,40 +915,150 @@ public class Pru {
     return cycleCountNonReset;
   }
 
+  /**
+   * Returns the estimated number of heap bytes used by this cpu alone: the object, registers,
+   * control registers, page table and the RAM pages the cpu owns. The program, RAM pages that
+   * are shared with forks or snapshots, and the code caches of {@link ExecutionMode#COMPILED},
+   * {@link ExecutionMode#CLOSURE}, {@link ExecutionMode#TRACING} and
+   * {@link ExecutionMode#TIERED} modes are not included. Compressed references are assumed.
+   * <p>RAM pages are allocated when they are written, so a cpu created with {@link #fork()}
+   * or a new cpu that writes little RAM costs a few kilobytes.
+   */
+  public long getFootprint() {
+    // Fields of Pru: 18 references, 11 ints and 3 booleans
+    long res = DataMemory.objectSize(18 * DataMemory.REFERENCE_SIZE + 11 * 4 + 3);
+    res += DataMemory.arraySize(TOTAL_REGISTERS, 4);
+    res += DataMemory.arraySize(carryBox.length, 4) + DataMemory.arraySize(traceState.length, 4);
+    return res + control.footprint() + memory.footprint();
+  }
+
+  /**
+   * Returns a live view of addresses {@code 0..0x7bff}: data RAM of both PRUs and
+   * the control registers. The view stays live after {@link #reset()} and
+   * {@link #restore(PruSnapshot)}. The control registers in the view are a copy that is refreshed
+   * by each call of this method and by each transfer that accesses them, and writes to
+   * the copy are ignored. The view needs contiguous memory, so that part of the RAM is no
+   * longer shared with forks: {@link #fork()} copies it for such a cpu.
+   * Use {@link #getRamByte(int)} and {@link #setRamByte(int, byte)} to keep forks cheap, and
+   * to access the rest of the address space.
+   */
   public ByteBuffer ram() {
-    return ram.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    return memory.window();
   }
 
-  public boolean getCarry() {
-    return carry != 0;
+  /**
+   * Moves the RAM returned by {@link #ram()} to a memory-mapped file, so another local process
+   * can map the same file and exchange data with the program directly. The file is created
+   * or truncated, and it gets the current contents of the RAM.
+   * <p>Ordering: each LBBO/SBBO transfer starts with a load fence and ends with a full fence,
+   * both are processor barriers ({@code sun.misc.Unsafe} fences). A transfer sees the bytes
+   * the other process wrote before the transfer started, and the bytes of a transfer are
+   * visible to the other process once the instruction completes. A transfer is not atomic as a whole: aligned words are written with single
+   * 32-bit stores, and the rest byte by byte. So the data should be published the usual way:
+   * write the payload, then the flag in a separate transfer (or after a fence on the host side),
+   * and the reader should check the flag before reading the payload.
+   * <p>The mapping is kept by {@link #reset()} and {@link #restore(PruSnapshot)}, and forks
+   * get private copies of the RAM.
+   */
+  public void shareRam(Path file) throws IOException {
+    MappedByteBuffer buffer;
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+        StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, DataMemory.WINDOW_BUFFER_SIZE);
+    }
+    memory.shareWindow(buffer);
+    sharedRam = buffer;
   }
 
-  public void setReg(Register reg, int value) {
-    int offset = reg.index() * 4;
-    RegisterField field = reg.field();
-    int bits = field.getBitWidth();
-    if (bits == 8) {
-      registers.put(offset + field.toMask(), (byte) (value & 0xff));
-      return;
+  /**
+   * Maps a device to the data address space. The region must be aligned to 256 bytes and
+   * must not overlap with other devices or with RAM, except the spare RAM in
+   * {@code 0x4000..0x7bff} outside the control registers.
+   */
+  public void mapDevice(int address, int length, MmioDevice device) {
+    memory.mapDevice(address, length, device);
+  }
+
+  /**
+   * Maps a memory-mapped file to the data address space, so LBBO/SBBO access the file
+   * directly. The region must be above the on-chip memories, for instance at
+   * {@link ExternalMemory#DDR}. The mapping is kept by {@link #restore(PruSnapshot)} and
+   * {@link #reset()}, and it is shared with forks.
+   *
+   * @param memory the region or null to remove the mapping
+   */
+  public void mapExternalMemory(int address, ExternalMemory memory) {
+    this.memory.mapExternal(address, memory);
+    this.external = memory;
+    this.externalAddress = address;
+  }
+
+  public byte getRamByte(int address) {
+    checkRamAddress(address, 1);
+    memory.beginTransfer(address, 1);
+    byte res = memory.get(address);
+    memory.endTransfer(address, 1);
+    return res;
+  }
+
+  public void setRamByte(int address, byte value) {
+    checkRamAddress(address, 1);
+    memory.beginTransfer(address, 1);
+    memory.put(address, value);
+    memory.endTransfer(address, 1);
+  }
+
+  public int getRamInt(int address) {
+    checkRamAddress(address, 4);
+    memory.beginTransfer(address, 4);
+    int res = memory.getInt(address);
+    memory.endTransfer(address, 4);
+    return res;
+  }
+
+  public void setRamInt(int address, int value) {
+    checkRamAddress(address, 4);
+    memory.beginTransfer(address, 4);
+    memory.putInt(address, value);
+    memory.endTransfer(address, 4);
+  }
+
+  private void checkRamAddress(int address, int length) {
+    if (!memory.isMapped(address, length)) {
+      throw new IllegalArgumentException(
+          "Address range " + address + ".." + (address + length) + " is not mapped");
     }
-    if (bits == 16) {
-      registers.putShort(offset + field.toMask() - 4, (short) (value & 0xffff));
-      return;
+  }
+
+  /**
+   * Creates a copy of the cpu: the same program, mode and settings, and the current registers,
+   * pc, carry, cycle counters and data RAM. The RAM pages are shared copy-on-write, so forking
+   * costs the page table, and a page is copied when either cpu writes it.
+   */
+  public Pru fork() {
+    Pru res = new Pru(cpuId, mode);
+    res.loopAcceleration = loopAcceleration;
+    res.external = external;
+    res.externalAddress = externalAddress;
+    if (tiering != null) {
+      res.tiering.setThreshold(tiering.getThreshold());
     }
-    registers.putInt(offset, value);
+    res.setProgram(program);
+    res.restore(snapshot());
+    return res;
+  }
+
+  public boolean getCarry() {
+    return carry() != 0;
+  }
+
+  public void setReg(Register reg, int value) {
+    int mask = reg.mask();
+    writeRegister(mask & 31, FIELD_SHIFT[mask], FIELD_MASK[mask], value);
   }
 
   public int getReg(Register reg) {
-    int offset = reg.index() * 4;
-    RegisterField field = reg.field();
-    int bits = field.getBitWidth();
-    if (bits == 8) {
-      return registers.get(offset + field.toMask()) & 0xff;
-    }
-    if (bits == 16) {
-      return registers.getShort(offset + field.toMask() - 4) & 0xffff;
-    }
-    return registers.getInt(offset);
+    return readRegister(reg.mask());
   }
 
   private int getRegOffset(Register reg) {
@@ -420,7 +1077,7 @@ public class Pru {
   public String printState() {
     StringBuilder sb = new StringBuilder();
     sb.append("pc: ").append(pc).append('\n');
-    sb.append("carry: ").append(carry).append('\n');
+    sb.append("carry: ").append(carry()).append('\n');
 
     sb.append("Instructions around pc\n");
     for (int i = Math.max(0, pc - 10); i < Math.min(instructionStream.size(), pc + 10); i++) {
@@ -451,7 +1108,7 @@ public class Pru {
     sb.append("\nVariables\n");
     sb.append("           Name |  Type |    Reg |    Decimal |        Hex\n");
     sb.append("----------------+-------+--------+------------+------------\n");
-    for (RegisterVariableLocation loc : code.getVarLocations()) {
+    for (RegisterVariableLocation loc : program.getVarLocations()) {
       if (loc.start.getAbsoluteOffset() <= pc && pc < loc.end.getAbsoluteOffset()) {
         hasVariables = true;
         appendLpad(sb, loc.name, 15).append(" | ");
@@ -0,0 +1,202 @@
+package com.github.vlsi.pru.plc110;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Many independent units that run the same {@link Program}, like a production line of
+ * controllers. The units are advanced in fixed cycle quanta on a {@link ForkJoinPool}, so idle
+ * workers steal ranges of units from busy ones.
+ * <p>The units are forks of a single cpu, so they share the decoded program and the initial RAM
+ * pages, and a unit copies only the pages it writes. Use {@link ExecutionMode#PREDECODED} for
+ * large fleets: the compiled modes keep code caches per unit.
+ * <p>{@link Listener} exchanges inputs and outputs of each unit between quanta and gets
+ * the per-unit events and the aggregate progress.
+ */
+public final class PruFleet {
+  // Units below this count are run by a single task
+  private static final int MIN_TASK_UNITS = 8;
+
+  private static final byte RUNNING = 0;
+  private static final byte HALTED = 1;
+  private static final byte FAILED = 2;
+
+  /**
+   * Callbacks of {@link #run(int, int, Listener)}. The per-unit methods are called on
+   * the worker threads, concurrently for different units, but never concurrently for the same
+   * unit. {@link #progress(long, int)} is called once all units complete the quantum.
+   */
+  public interface Listener {
+    /**
+     * Called before each quantum of a running unit, so the unit can get its inputs.
+     */
+    default void beforeQuantum(int unit, Pru cpu) {
+    }
+
+    /**
+     * Called after each quantum of a running unit.
+     */
+    default void afterQuantum(int unit, Pru cpu) {
+    }
+
+    /**
+     * Called once when the unit reaches the end of the program.
+     */
+    default void halted(int unit, Pru cpu) {
+    }
+
+    /**
+     * Called once when the unit fails, for instance with an invalid memory access.
+     * The unit is not run after that.
+     */
+    default void failed(int unit, Pru cpu, RuntimeException e) {
+    }
+
+    /**
+     * Called after each quantum with the number of cycles the fleet executed so far and
+     * the number of units that are still running.
+     */
+    default void progress(long cycles, int running) {
+    }
+  }
+
+  private final Pru[] units;
+  private final byte[] state;
+  private final ForkJoinPool pool;
+  private long cycleCount;
+  private int running;
+
+  public PruFleet(Program program, int size) {
+    this(program, size, ExecutionMode.PREDECODED, ForkJoinPool.commonPool());
+  }
+
+  public PruFleet(Program program, int size, ExecutionMode mode, ForkJoinPool pool) {
+    if (size <= 0) {
+      throw new IllegalArgumentException("Fleet size should be positive, got " + size);
+    }
+    Pru template = new Pru(mode);
+    template.setProgram(program);
+    units = new Pru[size];
+    for (int i = 0; i < size; i++) {
+      units[i] = template.fork();
+    }
+    state = new byte[size];
+    running = size;
+    this.pool = pool;
+  }
+
+  public int size() {
+    return units.length;
+  }
+
+  /**
+   * Returns the unit, so its state can be set or inspected between runs.
+   */
+  public Pru getUnit(int unit) {
+    return units[unit];
+  }
+
+  public boolean isRunning(int unit) {
+    return state[unit] == RUNNING;
+  }
+
+  /**
+   * Returns the number of units that neither halted nor failed.
+   */
+  public int getRunningCount() {
+    return running;
+  }
+
+  /**
+   * Returns the estimated heap bytes used by the units, see {@link Pru#getFootprint()}.
+   */
+  public long getFootprint() {
+    long res = DataMemory.arraySize(units.length, DataMemory.REFERENCE_SIZE)
+        + DataMemory.arraySize(state.length, 1);
+    for (Pru unit : units) {
+      res += unit.getFootprint();
+    }
+    return res;
+  }
+
+  /**
+   * Returns the number of cycles the fleet executed.
+   */
+  public long getCycleCount() {
+    return cycleCount;
+  }
+
+  /**
+   * Executes given number of cycles on each running unit, {@code quantum} cycles at a time.
+   * The last quantum is shortened so exactly {@code cycles} are executed.
+   */
+  public void run(int cycles, int quantum, Listener listener) {
+    if (quantum <= 0) {
+      throw new IllegalArgumentException("quantum should be positive, got " + quantum);
+    }
+    while (cycles > 0 && running > 0) {
+      int slice = Math.min(cycles, quantum);
+      pool.invoke(new Quantum(0, units.length, slice, listener));
+      int count = 0;
+      for (byte s : state) {
+        if (s == RUNNING) {
+          count++;
+        }
+      }
+      running = count;
+      cycleCount += slice;
+      cycles -= slice;
+      listener.progress(cycleCount, running);
+    }
+  }
+
+  private void runUnit(int unit, int cycles, Listener listener) {
+    if (state[unit] != RUNNING) {
+      return;
+    }
+    Pru cpu = units[unit];
+    listener.beforeQuantum(unit, cpu);
+    int executed;
+    try {
+      executed = cpu.runOrHalt(cycles);
+    } catch (RuntimeException e) {
+      state[unit] = FAILED;
+      listener.failed(unit, cpu, e);
+      return;
+    }
+    listener.afterQuantum(unit, cpu);
+    if (executed < cycles) {
+      state[unit] = HALTED;
+      listener.halted(unit, cpu);
+    }
+  }
+
+  private final class Quantum extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final int from;
+    private final int to;
+    private final int cycles;
+    private final Listener listener;
+
+    Quantum(int from, int to, int cycles, Listener listener) {
+      this.from = from;
+      this.to = to;
+      this.cycles = cycles;
+      this.listener = listener;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from <= MIN_TASK_UNITS) {
+        for (int i = from; i < to; i++) {
+          runUnit(i, cycles, listener);
+        }
+        return;
+      }
+      int mid = (from + to) >>> 1;
+      invokeAll(new Quantum(from, mid, cycles, listener),
+          new Quantum(mid, to, cycles, listener));
+    }
+  }
+}
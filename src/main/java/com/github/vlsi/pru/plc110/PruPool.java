@@ -0,0 +1,55 @@
+package com.github.vlsi.pru.plc110;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Thread-safe pool of {@link Pru} instances that have the same {@link Program} loaded.
+ * Released instances are {@link Pru#reset() reset}, so each {@link #acquire()} returns a cpu
+ * in the initial state, and the compiled code caches are reused across simulations.
+ */
+public final class PruPool {
+  private final Program program;
+  private final int cpuId;
+  private final ExecutionMode mode;
+  private final Queue<Pru> idle = new ConcurrentLinkedQueue<>();
+
+  public PruPool(Program program) {
+    this(program, 0, ExecutionMode.PREDECODED);
+  }
+
+  public PruPool(Program program, int cpuId, ExecutionMode mode) {
+    this.program = program;
+    this.cpuId = cpuId;
+    this.mode = mode;
+  }
+
+  public Program getProgram() {
+    return program;
+  }
+
+  /**
+   * Returns a cpu in the initial state with the program loaded.
+   */
+  public Pru acquire() {
+    Pru cpu = idle.poll();
+    if (cpu != null) {
+      return cpu;
+    }
+    cpu = new Pru(cpuId, mode);
+    cpu.setProgram(program);
+    return cpu;
+  }
+
+  /**
+   * Resets the cpu and returns it to the pool. The cpu must not be used after the release.
+   */
+  public void release(Pru cpu) {
+    if (cpu.getProgram() != program || cpu.cpuId != cpuId || cpu.getExecutionMode() != mode) {
+      throw new IllegalArgumentException("Pru " + cpu.cpuId + ", " + cpu.getExecutionMode()
+          + " was not acquired from this pool (" + cpuId + ", " + mode + ")");
+    }
+    cpu.reset();
+    idle.offer(cpu);
+  }
+}
@@ -0,0 +1,46 @@
+package com.github.vlsi.pru.plc110;
+
+/**
+ * Immutable state of a {@link Pru}: registers, data RAM, control registers, pc, carry,
+ * cycle counters and the state of the memory transfer in progress. The RAM pages are shared
+ * copy-on-write with the cpu, so taking a snapshot and restoring it costs the page table rather
+ * than the RAM size.
+ * The same snapshot can be restored to any number of cpus.
+ *
+ * @see Pru#snapshot()
+ * @see Pru#restore(PruSnapshot)
+ */
+public final class PruSnapshot {
+  final int[] registers;
+  // Never written, restore() forks it
+  final DataMemory memory;
+  final int[] controlRegisters;
+  final int pc;
+  final int carry;
+  final int cycleCount;
+  final int cycleCountNonReset;
+  final int memoryTransferCyclesLeft;
+  final int memoryTransferStarted;
+
+  PruSnapshot(int[] registers, DataMemory memory, int[] controlRegisters, int pc, int carry,
+              int cycleCount, int cycleCountNonReset, int memoryTransferCyclesLeft,
+              int memoryTransferStarted) {
+    this.registers = registers;
+    this.memory = memory;
+    this.controlRegisters = controlRegisters;
+    this.pc = pc;
+    this.carry = carry;
+    this.cycleCount = cycleCount;
+    this.cycleCountNonReset = cycleCountNonReset;
+    this.memoryTransferCyclesLeft = memoryTransferCyclesLeft;
+    this.memoryTransferStarted = memoryTransferStarted;
+  }
+
+  public int getPc() {
+    return pc;
+  }
+
+  public int getCycleCount() {
+    return cycleCount;
+  }
+}
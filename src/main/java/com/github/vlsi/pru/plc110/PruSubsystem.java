@@ -0,0 +1,111 @@
+package com.github.vlsi.pru.plc110;
+
+/**
+ * Two PRU cores that share the data address space: PRU0 data RAM is the remote RAM of PRU1
+ * and vice versa, shared RAM is common, and each core sees the control registers of
+ * the other one.
+ * <p>The cores are advanced in lockstep. {@link #run(int)} interleaves them cycle by cycle:
+ * PRU0 executes a cycle, then PRU1 executes the same cycle. {@link #run(int, int)} runs each
+ * core for a quantum at a time, so the compiled modes execute longer blocks, and a write
+ * becomes visible to the other core at most a quantum later. Both ways are deterministic.
+ * {@link #runParallel(int, int)} runs the cores on separate threads, and it gives the same result
+ * as {@link #run(int)} only for a subset of programs, see its description.
+ * <p>Load the programs via {@link #getPru(int)}. A core that reached the end of its program
+ * stays halted. The cores share memory, so {@link Pru#restore(PruSnapshot)} is not supported for
+ * them, and {@link Pru#reset()} of either core clears the memory of both.
+ */
+public final class PruSubsystem {
+  private final DataMemory memory = new DataMemory();
+  private final Pru pru0;
+  private final Pru pru1;
+  private long cycleCount;
+
+  public PruSubsystem() {
+    this(ExecutionMode.PREDECODED);
+  }
+
+  public PruSubsystem(ExecutionMode mode) {
+    pru0 = new Pru(0, mode);
+    pru1 = new Pru(1, mode);
+    memory.mapControlRegisters(pru0.controlRegisters(), pru1.controlRegisters());
+    pru0.attach(memory);
+    pru1.attach(memory);
+  }
+
+  public Pru getPru(int cpuId) {
+    if (cpuId != 0 && cpuId != 1) {
+      throw new IllegalArgumentException("cpuId should be 0 or 1, got " + cpuId);
+    }
+    return cpuId == 0 ? pru0 : pru1;
+  }
+
+  /**
+   * Returns the number of cycles executed by the subsystem, including the cycles
+   * halted cores were idle.
+   */
+  public long getCycleCount() {
+    return cycleCount;
+  }
+
+  /**
+   * Executes given number of cycles, interleaving the cores cycle by cycle.
+   */
+  public void run(int cycles) {
+    run(cycles, 1);
+  }
+
+  /**
+   * Executes given number of cycles, running each core for {@code quantum} cycles at a time.
+   * The last quantum is shortened so exactly {@code cycles} are executed.
+   */
+  public void run(int cycles, int quantum) {
+    if (quantum <= 0) {
+      throw new IllegalArgumentException("quantum should be positive, got " + quantum);
+    }
+    while (cycles > 0) {
+      int slice = Math.min(cycles, quantum);
+      pru0.runOrHalt(slice);
+      pru1.runOrHalt(slice);
+      cycleCount += slice;
+      cycles -= slice;
+    }
+  }
+
+  /**
+   * Executes given number of cycles with each core on its own thread. The cores run
+   * independently, and only memory transfers wait till the other core catches up, see
+   * {@link CoreSync}. A core runs up to {@code lookahead} cycles before it publishes its
+   * progress, so larger values reduce the synchronization overhead, and smaller values let
+   * the other core wait less at memory transfers.
+   * <p>The result is the same as {@link #run(int)} for the programs that meet the following:
+   * <ul>
+   *   <li>a core does not access the control registers of the other core: such an access
+   *   needs both cores stopped at the same cycle, so it fails with
+   *   {@link IllegalStateException} and leaves the cores at different cycles;</li>
+   *   <li>devices mapped via {@link Pru#mapDevice(int, int, MmioDevice)} depend only on
+   *   the order of the transfers: the transfers of both cores reach the devices one at a time
+   *   in the order of {@link #run(int)}, however the devices are called from both threads, and
+   *   a device that has other inputs, like a host thread or wall-clock time, is not
+   *   deterministic.</li>
+   * </ul>
+   */
+  public void runParallel(int cycles, int lookahead) {
+    if (lookahead <= 0) {
+      throw new IllegalArgumentException("lookahead should be positive, got " + lookahead);
+    }
+    if (cycles <= 0) {
+      return;
+    }
+    new CoreSync(pru0, pru1, cycles, lookahead).run();
+    cycleCount += cycles;
+  }
+
+  /**
+   * Resets both cores and clears the memory.
+   */
+  public void reset() {
+    pru0.reset();
+    pru1.reset();
+    cycleCount = 0;
+  }
+}
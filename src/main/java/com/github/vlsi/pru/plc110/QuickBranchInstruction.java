@@ -33,7 +33,7 @@ public class QuickBranchInstruction extends Instruction implements Jump {
   }
 
   public final Operation operation;
-  public short offset;
+  private short offset;
   public final boolean op2IsRegister;
   public final int op2;
   public final Register srcRegister;
@@ -109,9 +109,13 @@ public class QuickBranchInstruction extends Instruction implements Jump {
         | (offset & 0xff);
   }
 
+  public short getOffset() {
+    return offset;
+  }
+
   public void setOffset(short offset) {
     assertOffset10bit(offset);
-    this.code = updateOffset(code, offset);
+    setCode(updateOffset(getCode(), offset));
     this.offset = offset;
   }
 
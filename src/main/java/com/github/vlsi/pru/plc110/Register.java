@@ -1,17 +1,29 @@
 package com.github.vlsi.pru.plc110;
 
 public class Register {
-  private int index;
-  private RegisterField field;
+  // Canonical registers indexed by mask()
+  private static final Register[] BY_MASK = new Register[256];
+
+  static {
+    for (int mask = 0; mask < BY_MASK.length; mask++) {
+      BY_MASK[mask] = new Register(mask & 31, RegisterField.ofMask(mask >>> 5));
+    }
+  }
+
+  private final int index;
+  private final RegisterField field;
 
   public Register(int index, RegisterField field) {
     this.index = index;
     this.field = field;
   }
 
+  /**
+   * Returns canonical register for given mask, so no allocation is made.
+   */
   public static Register ofMask(int mask) {
     assert mask >=0 && mask <= 255 : "Register mask should be [0..255]. Given " + mask;
-    return new Register(mask & 31, RegisterField.ofMask(mask >>> 5));
+    return BY_MASK[mask & 0xff];
   }
 
   public int index() {
@@ -30,7 +42,7 @@ public class Register {
     if (this.field == field) {
       return this;
     }
-    return new Register(index(), field);
+    return BY_MASK[index | field.toMask() << 5];
   }
 
   @Override
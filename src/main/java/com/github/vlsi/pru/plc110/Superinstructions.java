@@ -0,0 +1,177 @@
+package com.github.vlsi.pru.plc110;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Superinstructions of {@link ExecutionMode#CLOSURE}: the first {@link #PROFILE_CYCLES} cycles
+ * count executions of each instruction, then the most frequent shapes (sequences of operations)
+ * of two and three adjacent instructions are fused, so the sequence is executed with a single
+ * dispatch. Each fused instruction still accounts for one cycle.
+ * <p>Each fused sequence is translated by {@link BlockCompiler} to a single method, so its
+ * instructions are executed inline with the operands as constants.
+ */
+final class Superinstructions {
+  static final int PROFILE_CYCLES = 10000;
+  static final int MAX_SHAPES = 16;
+  static final int MAX_LENGTH = 3;
+
+  private final DecodedProgram program;
+  private final ThreadedCode.Op[] ops;
+  private final int[] carryBox = new int[1];
+  private int[] counts;
+  private int profileCyclesLeft = PROFILE_CYCLES;
+  private CompiledBlock[] fused;
+  private int[] fusedLength;
+
+  Superinstructions(DecodedProgram program, ThreadedCode.Op[] ops) {
+    this.program = program;
+    this.ops = ops;
+    this.counts = new int[ops.length];
+  }
+
+  /**
+   * Executes given number of cycles.
+   */
+  void run(Pru cpu, int cycles) {
+    ThreadedCode.Op[] ops = this.ops;
+    if (fused == null) {
+      int[] counts = this.counts;
+      int profile = Math.min(cycles, profileCyclesLeft);
+      for (int i = 0; i < profile; i++) {
+        int pc = cpu.pc;
+        counts[pc]++;
+        cpu.cycleCount++;
+        cpu.cycleCountNonReset++;
+        ops[pc].execute(cpu);
+      }
+      cycles -= profile;
+      profileCyclesLeft -= profile;
+      if (profileCyclesLeft != 0) {
+        return;
+      }
+      fuse();
+    }
+    CompiledBlock[] fused = this.fused;
+    int[] fusedLength = this.fusedLength;
+    while (cycles > 0) {
+      int pc = cpu.pc;
+      int length = fusedLength[pc];
+      if (length != 0 && length <= cycles) {
+        execute(cpu, fused[pc]);
+        cycles -= length;
+      } else {
+        cpu.cycleCount++;
+        cpu.cycleCountNonReset++;
+        ops[pc].execute(cpu);
+        cycles--;
+      }
+    }
+  }
+
+  /**
+   * Executes at least one cycle.
+   *
+   * @param maxCycles the maximum number of cycles to execute
+   * @return the number of executed cycles
+   */
+  int step(Pru cpu, int maxCycles) {
+    int pc = cpu.pc;
+    if (fused == null) {
+      counts[pc]++;
+      cpu.cycleCount++;
+      cpu.cycleCountNonReset++;
+      ops[pc].execute(cpu);
+      if (--profileCyclesLeft == 0) {
+        fuse();
+      }
+      return 1;
+    }
+    int length = fusedLength[pc];
+    if (length != 0 && length <= maxCycles) {
+      execute(cpu, fused[pc]);
+      return length;
+    }
+    cpu.cycleCount++;
+    cpu.cycleCountNonReset++;
+    ops[pc].execute(cpu);
+    return 1;
+  }
+
+  private void execute(Pru cpu, CompiledBlock block) {
+    // Fused instructions do not read cycle counters, so the counters are updated upfront
+    cpu.cycleCount += block.length;
+    cpu.cycleCountNonReset += block.length;
+    int[] carryBox = this.carryBox;
+    carryBox[0] = cpu.carry;
+    cpu.pc = block.execute(cpu.registers, carryBox);
+    cpu.carry = carryBox[0];
+  }
+
+  private void fuse() {
+    int size = program.size();
+    Map<Long, long[]> weights = new HashMap<>();
+    for (int pc = 0; pc < size; pc++) {
+      if (counts[pc] == 0) {
+        continue;
+      }
+      for (int length = 2; length <= MAX_LENGTH && isFusible(pc, length); length++) {
+        weights.computeIfAbsent(shape(pc, length), k -> new long[1])[0] += counts[pc];
+      }
+    }
+    List<Map.Entry<Long, long[]>> shapes = new ArrayList<>(weights.entrySet());
+    shapes.sort((a, b) -> Long.compare(b.getValue()[0], a.getValue()[0]));
+    Set<Long> selected = new HashSet<>();
+    for (int i = 0; i < shapes.size() && i < MAX_SHAPES; i++) {
+      selected.add(shapes.get(i).getKey());
+    }
+
+    BlockCompiler compiler = new BlockCompiler(program);
+    CompiledBlock[] fused = new CompiledBlock[size];
+    int[] fusedLength = new int[size];
+    for (int pc = 0; pc < size; pc++) {
+      if (counts[pc] == 0) {
+        continue;
+      }
+      for (int length = MAX_LENGTH; length >= 2; length--) {
+        if (isFusible(pc, length) && selected.contains(shape(pc, length))) {
+          fused[pc] = compiler.compile(pc, length);
+          fusedLength[pc] = length;
+          break;
+        }
+      }
+    }
+    this.fused = fused;
+    this.fusedLength = fusedLength;
+    counts = null;
+  }
+
+  /**
+   * Returns true if the instructions can be executed at once: all of them take a single cycle,
+   * and only the last one might transfer control.
+   */
+  private boolean isFusible(int pc, int length) {
+    if (pc + length > program.size()) {
+      return false;
+    }
+    for (int i = 0; i < length - 1; i++) {
+      if (!DecodedProgram.isStraight(program.op(pc + i))) {
+        return false;
+      }
+    }
+    int last = program.op(pc + length - 1);
+    return DecodedProgram.isStraight(last) || DecodedProgram.isJump(last);
+  }
+
+  private long shape(int pc, int length) {
+    long res = length;
+    for (int i = 0; i < length; i++) {
+      res = res << 6 | program.op(pc + i);
+    }
+    return res;
+  }
+}
@@ -0,0 +1,301 @@
+package com.github.vlsi.pru.plc110;
+
+import java.util.List;
+
+/**
+ * Builds {@link ExecutionMode#CLOSURE} code: each instruction of {@link DecodedProgram} becomes
+ * an {@link Op} that captures already resolved operands, so no type tests and no switches
+ * are performed at run time.
+ */
+final class ThreadedCode {
+  /**
+   * Executes one cycle of an instruction. Cycle counters are incremented by the caller.
+   */
+  interface Op {
+    void execute(Pru cpu);
+  }
+
+  private ThreadedCode() {
+  }
+
+  static Op[] compile(DecodedProgram program, List<Instruction> instructions) {
+    Op[] ops = new Op[program.size()];
+    for (int pc = 0; pc < ops.length; pc++) {
+      ops[pc] = compile(program.code, pc, instructions.get(pc));
+    }
+    return ops;
+  }
+
+  private static Op compile(int[] c, int pc, Instruction ins) {
+    int p = pc * DecodedProgram.STRIDE;
+    int op = c[p + DecodedProgram.OP];
+    int next = pc + 1;
+    int d = c[p + DecodedProgram.DST];
+    int dShift = c[p + DecodedProgram.DST_SHIFT];
+    int dMask = c[p + DecodedProgram.DST_MASK];
+    int s = c[p + DecodedProgram.SRC];
+    int sShift = c[p + DecodedProgram.SRC_SHIFT];
+    int sMask = c[p + DecodedProgram.SRC_MASK];
+    int o = c[p + DecodedProgram.OP2];
+    int oShift = c[p + DecodedProgram.OP2_SHIFT];
+    int oMask = c[p + DecodedProgram.OP2_MASK];
+    int imm = c[p + DecodedProgram.OP2_IMM];
+    int target = c[p + DecodedProgram.TARGET];
+
+    if (dMask == -1 && sMask == -1 && oMask == 0) {
+      // dw, dw, imm is the most common form of counters and loops
+      if (op == DecodedProgram.ADD) {
+        return cpu -> {
+          int[] r = cpu.registers;
+          int res = r[s] + imm;
+          cpu.carry = Integer.compareUnsigned(res, imm) >>> 31;
+          r[d] = res;
+          cpu.pc = next;
+        };
+      }
+      if (op == DecodedProgram.SUB) {
+        return cpu -> {
+          int[] r = cpu.registers;
+          long res = Integer.toUnsignedLong(r[s]) - imm;
+          cpu.carry = (int) (res >>> 63);
+          r[d] = (int) res;
+          cpu.pc = next;
+        };
+      }
+    }
+
+    switch (op) {
+      case DecodedProgram.ADD:
+        return cpu -> {
+          int op2 = cpu.readRegister(o, oShift, oMask) | imm;
+          int res = (cpu.readRegister(s, sShift, sMask) + op2) & dMask;
+          cpu.carry = Integer.compareUnsigned(res, op2) >>> 31;
+          cpu.writeRegister(d, dShift, dMask, res);
+          cpu.pc = next;
+        };
+      case DecodedProgram.ADC:
+        return cpu -> {
+          int op2 = cpu.readRegister(o, oShift, oMask) | imm;
+          int carry = cpu.carry;
+          int res = (cpu.readRegister(s, sShift, sMask) + op2 + carry) & dMask;
+          cpu.carry = (Integer.compareUnsigned(res, op2) - carry) >>> 31;
+          cpu.writeRegister(d, dShift, dMask, res);
+          cpu.pc = next;
+        };
+      case DecodedProgram.SUB:
+        return cpu -> {
+          long res = Integer.toUnsignedLong(cpu.readRegister(s, sShift, sMask))
+              - (cpu.readRegister(o, oShift, oMask) | imm);
+          cpu.carry = (int) (res >>> 63);
+          cpu.writeRegister(d, dShift, dMask, (int) res);
+          cpu.pc = next;
+        };
+      case DecodedProgram.SUC:
+        return cpu -> {
+          long res = Integer.toUnsignedLong(cpu.readRegister(s, sShift, sMask))
+              - (cpu.readRegister(o, oShift, oMask) | imm) - cpu.carry;
+          cpu.carry = (int) (res >>> 63);
+          cpu.writeRegister(d, dShift, dMask, (int) res);
+          cpu.pc = next;
+        };
+      case DecodedProgram.LSL:
+        return cpu -> {
+          cpu.writeRegister(d, dShift, dMask, cpu.readRegister(s, sShift, sMask)
+              << ((cpu.readRegister(o, oShift, oMask) | imm) & 0x1f));
+          cpu.pc = next;
+        };
+      case DecodedProgram.LSR:
+        return cpu -> {
+          cpu.writeRegister(d, dShift, dMask, cpu.readRegister(s, sShift, sMask)
+              >>> ((cpu.readRegister(o, oShift, oMask) | imm) & 0x1f));
+          cpu.pc = next;
+        };
+      case DecodedProgram.RSB:
+        return cpu -> {
+          long res = (cpu.readRegister(o, oShift, oMask) | imm)
+              - Integer.toUnsignedLong(cpu.readRegister(s, sShift, sMask));
+          cpu.carry = (int) (res >>> 63);
+          cpu.writeRegister(d, dShift, dMask, (int) res);
+          cpu.pc = next;
+        };
+      case DecodedProgram.RSC:
+        return cpu -> {
+          long res = (cpu.readRegister(o, oShift, oMask) | imm)
+              - Integer.toUnsignedLong(cpu.readRegister(s, sShift, sMask)) - cpu.carry;
+          cpu.carry = (int) (res >>> 63);
+          cpu.writeRegister(d, dShift, dMask, (int) res);
+          cpu.pc = next;
+        };
+      case DecodedProgram.AND:
+        return cpu -> {
+          cpu.writeRegister(d, dShift, dMask, cpu.readRegister(s, sShift, sMask)
+              & (cpu.readRegister(o, oShift, oMask) | imm));
+          cpu.pc = next;
+        };
+      case DecodedProgram.OR:
+        return cpu -> {
+          cpu.writeRegister(d, dShift, dMask, cpu.readRegister(s, sShift, sMask)
+              | (cpu.readRegister(o, oShift, oMask) | imm));
+          cpu.pc = next;
+        };
+      case DecodedProgram.XOR:
+        return cpu -> {
+          cpu.writeRegister(d, dShift, dMask, cpu.readRegister(s, sShift, sMask)
+              ^ (cpu.readRegister(o, oShift, oMask) | imm));
+          cpu.pc = next;
+        };
+      case DecodedProgram.NOT:
+        return cpu -> {
+          cpu.writeRegister(d, dShift, dMask, ~cpu.readRegister(s, sShift, sMask));
+          cpu.pc = next;
+        };
+      case DecodedProgram.MIN:
+        return cpu -> {
+          cpu.writeRegister(d, dShift, dMask, Math.min(cpu.readRegister(s, sShift, sMask),
+              cpu.readRegister(o, oShift, oMask) | imm));
+          cpu.pc = next;
+        };
+      case DecodedProgram.MAX:
+        return cpu -> {
+          cpu.writeRegister(d, dShift, dMask, Math.max(cpu.readRegister(s, sShift, sMask),
+              cpu.readRegister(o, oShift, oMask) | imm));
+          cpu.pc = next;
+        };
+      case DecodedProgram.CLR:
+        return cpu -> {
+          cpu.writeRegister(d, dShift, dMask, cpu.readRegister(s, sShift, sMask)
+              & ~(1 << ((cpu.readRegister(o, oShift, oMask) | imm) & 0x1f)));
+          cpu.pc = next;
+        };
+      case DecodedProgram.SET:
+        return cpu -> {
+          cpu.writeRegister(d, dShift, dMask, cpu.readRegister(s, sShift, sMask)
+              | (1 << ((cpu.readRegister(o, oShift, oMask) | imm) & 0x1f)));
+          cpu.pc = next;
+        };
+      case DecodedProgram.LDI:
+        return cpu -> {
+          cpu.writeRegister(d, dShift, dMask, imm);
+          cpu.pc = next;
+        };
+      case DecodedProgram.JMP:
+        if (oMask == 0) {
+          return cpu -> cpu.pc = imm;
+        }
+        return cpu -> cpu.pc = cpu.readRegister(o, oShift, oMask);
+      case DecodedProgram.JAL:
+        return cpu -> {
+          // Return address is written first, so JAL rX, rX jumps to the return address
+          cpu.writeRegister(d, dShift, dMask, next);
+          cpu.pc = cpu.readRegister(o, oShift, oMask) | imm;
+        };
+      case DecodedProgram.LMBD:
+        return cpu -> {
+          int src = cpu.readRegister(s, sShift, sMask);
+          if (((cpu.readRegister(o, oShift, oMask) | imm) & 1) == 0) {
+            src ^= sMask;
+          }
+          int res = 31 - Integer.numberOfLeadingZeros(src);
+          cpu.writeRegister(d, dShift, dMask, res < 0 ? 32 : res);
+          cpu.pc = next;
+        };
+      case DecodedProgram.LOAD:
+      case DecodedProgram.STORE:
+        return memoryTransfer(c, p, pc, ins);
+      default:
+        if (op >= DecodedProgram.QB && op <= DecodedProgram.QBBC) {
+          return quickBranch(op, pc, target, s, sShift, sMask, o, oShift, oMask, imm);
+        }
+        return cpu -> {
+          throw new IllegalStateException("Unsupported instruction " + ins);
+        };
+    }
+  }
+
+  private static Op quickBranch(int op, int pc, int target,
+                                int s, int sShift, int sMask,
+                                int o, int oShift, int oMask, int imm) {
+    int next = pc + 1;
+    switch (op) {
+      case DecodedProgram.QBNEVER:
+        return cpu -> cpu.pc = next;
+      case DecodedProgram.QBA:
+        return cpu -> cpu.pc = target;
+      case DecodedProgram.QBLT:
+        return cpu -> cpu.pc = Integer.compareUnsigned(cpu.readRegister(o, oShift, oMask) | imm,
+            cpu.readRegister(s, sShift, sMask)) < 0 ? target : next;
+      case DecodedProgram.QBLE:
+        return cpu -> cpu.pc = Integer.compareUnsigned(cpu.readRegister(o, oShift, oMask) | imm,
+            cpu.readRegister(s, sShift, sMask)) <= 0 ? target : next;
+      case DecodedProgram.QBGT:
+        return cpu -> cpu.pc = Integer.compareUnsigned(cpu.readRegister(o, oShift, oMask) | imm,
+            cpu.readRegister(s, sShift, sMask)) > 0 ? target : next;
+      case DecodedProgram.QBGE:
+        return cpu -> cpu.pc = Integer.compareUnsigned(cpu.readRegister(o, oShift, oMask) | imm,
+            cpu.readRegister(s, sShift, sMask)) >= 0 ? target : next;
+      case DecodedProgram.QBEQ:
+        if (oMask == 0) {
+          return cpu -> cpu.pc = cpu.readRegister(s, sShift, sMask) == imm ? target : next;
+        }
+        return cpu -> cpu.pc = cpu.readRegister(o, oShift, oMask)
+            == cpu.readRegister(s, sShift, sMask) ? target : next;
+      case DecodedProgram.QBNE:
+        if (oMask == 0) {
+          return cpu -> cpu.pc = cpu.readRegister(s, sShift, sMask) != imm ? target : next;
+        }
+        return cpu -> cpu.pc = cpu.readRegister(o, oShift, oMask)
+            != cpu.readRegister(s, sShift, sMask) ? target : next;
+      case DecodedProgram.QBBS:
+        if (oMask == 0) {
+          int bit = 1 << (imm & 31);
+          return cpu -> cpu.pc = (cpu.readRegister(s, sShift, sMask) & bit) != 0 ? target : next;
+        }
+        return cpu -> cpu.pc = (cpu.readRegister(s, sShift, sMask)
+            & (1 << (cpu.readRegister(o, oShift, oMask) & 31))) != 0 ? target : next;
+      case DecodedProgram.QBBC:
+        if (oMask == 0) {
+          int bit = 1 << (imm & 31);
+          return cpu -> cpu.pc = (cpu.readRegister(s, sShift, sMask) & bit) == 0 ? target : next;
+        }
+        return cpu -> cpu.pc = (cpu.readRegister(s, sShift, sMask)
+            & (1 << (cpu.readRegister(o, oShift, oMask) & 31))) == 0 ? target : next;
+      default:
+        throw new IllegalArgumentException("Not a quick branch: " + op);
+    }
+  }
+
+  private static Op memoryTransfer(int[] c, int p, int pc, Instruction ins) {
+    boolean load = c[p + DecodedProgram.OP] == DecodedProgram.LOAD;
+    int next = pc + 1;
+    int regOffs = c[p + DecodedProgram.DST];
+    int a = c[p + DecodedProgram.SRC];
+    int aShift = c[p + DecodedProgram.SRC_SHIFT];
+    int aMask = c[p + DecodedProgram.SRC_MASK];
+    int addrImm = c[p + DecodedProgram.ADDR_IMM];
+    int o = c[p + DecodedProgram.OP2];
+    int oShift = c[p + DecodedProgram.OP2_SHIFT];
+    int oMask = c[p + DecodedProgram.OP2_MASK];
+    int imm = c[p + DecodedProgram.OP2_IMM];
+    int l = c[p + DecodedProgram.LEN];
+    int lShift = c[p + DecodedProgram.LEN_SHIFT];
+    int lMask = c[p + DecodedProgram.LEN_MASK];
+    int lImm = c[p + DecodedProgram.LEN_IMM];
+    return cpu -> {
+      if (cpu.memoryTransferCyclesLeft == 0) {
+        cpu.memoryTransferStarted = cpu.cycleCount;
+        cpu.memoryTransferCyclesLeft =
+            Pru.memoryTransferCycles(load, cpu.readRegister(l, lShift, lMask) | lImm);
+        return;
+      }
+      if (--cpu.memoryTransferCyclesLeft != 0) {
+        return;
+      }
+      cpu.transferMemory(load, regOffs,
+          cpu.readRegister(a, aShift, aMask) | addrImm,
+          cpu.readRegister(o, oShift, oMask) | imm,
+          cpu.readRegister(l, lShift, lMask) | lImm,
+          ins);
+      cpu.pc = next;
+    };
+  }
+}
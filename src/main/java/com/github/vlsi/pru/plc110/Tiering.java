@@ -0,0 +1,126 @@
+package com.github.vlsi.pru.plc110;
+
+/**
+ * Tier management of {@link ExecutionMode#TIERED}. Each block starts in the interpreter,
+ * and it is compiled to a JVM class once it is entered {@link #getThreshold()} times.
+ * Blocks are the ones of {@link ExecutionMode#COMPILED}: a straight-line sequence that ends with
+ * a jump.
+ */
+public final class Tiering {
+  public static final int DEFAULT_THRESHOLD = 100;
+
+  private int threshold = DEFAULT_THRESHOLD;
+  private BlockCompiler compiler = new BlockCompiler(DecodedProgram.EMPTY);
+  private int[] counters = new int[0];
+  private int compiledBlocks;
+
+  Tiering() {
+  }
+
+  void setProgram(DecodedProgram program) {
+    compiler = new BlockCompiler(program);
+    counters = new int[program.size()];
+    compiledBlocks = 0;
+  }
+
+  /**
+   * Returns the number of block entries after which the block is compiled.
+   */
+  public int getThreshold() {
+    return threshold;
+  }
+
+  /**
+   * Sets the number of block entries after which the block is compiled.
+   * Zero compiles each block on the first entry.
+   */
+  public void setThreshold(int threshold) {
+    if (threshold < 0) {
+      throw new IllegalArgumentException("threshold should be non-negative, got " + threshold);
+    }
+    this.threshold = threshold;
+  }
+
+  /**
+   * Returns the number of cycles of the block that starts at given pc, or 0 if there's no block
+   * that starts at pc (e.g. memory transfer instruction).
+   */
+  public int getBlockLength(int pc) {
+    return compiler.blockLength(pc);
+  }
+
+  /**
+   * Returns the number of times the block was entered either in the interpreter or as compiled
+   * code since the program was loaded or since the block was deoptimized.
+   */
+  public int getExecutionCount(int pc) {
+    return getBlockLength(pc) == 0 ? 0 : counters[pc];
+  }
+
+  public boolean isCompiled(int pc) {
+    return getBlockLength(pc) != 0 && compiler.isCompiled(pc);
+  }
+
+  /**
+   * Returns the number of blocks that are currently compiled.
+   */
+  public int getCompiledBlockCount() {
+    return compiledBlocks;
+  }
+
+  /**
+   * Compiles the block regardless of its execution count.
+   *
+   * @return false if there's no block at given pc
+   */
+  public boolean compile(int pc) {
+    if (getBlockLength(pc) == 0) {
+      return false;
+    }
+    if (!compiler.isCompiled(pc)) {
+      compiler.getBlock(pc);
+      compiledBlocks++;
+    }
+    return true;
+  }
+
+  /**
+   * Returns the block to the interpreter and resets its execution count.
+   */
+  public void deoptimize(int pc) {
+    if (getBlockLength(pc) == 0) {
+      return;
+    }
+    counters[pc] = 0;
+    if (compiler.isCompiled(pc)) {
+      compiler.invalidate(pc);
+      compiledBlocks--;
+    }
+  }
+
+  /**
+   * Returns all the blocks to the interpreter.
+   */
+  public void deoptimizeAll() {
+    for (int pc = 0; pc < counters.length; pc++) {
+      deoptimize(pc);
+    }
+  }
+
+  /**
+   * Counts block entry.
+   *
+   * @return compiled block, or null if the block should be interpreted
+   */
+  CompiledBlock enter(int pc) {
+    int count = ++counters[pc];
+    if (compiler.isCompiled(pc)) {
+      return compiler.getBlock(pc);
+    }
+    if (count <= threshold) {
+      return null;
+    }
+    compile(pc);
+    return compiler.getBlock(pc);
+  }
+}
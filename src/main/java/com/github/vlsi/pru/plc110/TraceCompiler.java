@@ -0,0 +1,95 @@
+package com.github.vlsi.pru.plc110;
+
+/**
+ * Finds hot loops for {@link ExecutionMode#TRACING}. Targets of backward branches are counted,
+ * and once a target crosses {@link #HOT_THRESHOLD}, the next iteration is recorded
+ * instruction by instruction. The recorded path is compiled with {@link BlockCompiler}.
+ */
+final class TraceCompiler {
+  static final int HOT_THRESHOLD = 50;
+  /**
+   * Limits trace length, so the generated methods stay below HotSpot huge method limit.
+   */
+  static final int MAX_TRACE_LENGTH = 128;
+
+  private static final int BLACKLISTED = Integer.MIN_VALUE;
+
+  private final DecodedProgram program;
+  private final BlockCompiler compiler;
+  private final int[] counters;
+  private final CompiledTrace[] traces;
+
+  private final int[] path = new int[MAX_TRACE_LENGTH];
+  private int pathLength;
+  private int recordingHead = -1;
+  private int expectedPc;
+
+  TraceCompiler(DecodedProgram program) {
+    this.program = program;
+    this.compiler = new BlockCompiler(program);
+    this.counters = new int[program.size()];
+    this.traces = new CompiledTrace[program.size()];
+  }
+
+  /**
+   * Returns compiled trace that starts at given pc, or null if the instruction should
+   * be interpreted.
+   */
+  CompiledTrace getTrace(int pc) {
+    if (recordingHead != -1 || pc < 0 || pc >= traces.length) {
+      return null;
+    }
+    return traces[pc];
+  }
+
+  /**
+   * Observes an interpreted cycle.
+   *
+   * @param from pc before the cycle
+   * @param to pc after the cycle
+   */
+  void afterTick(int from, int to) {
+    int op = program.op(from);
+    if (recordingHead != -1) {
+      record(from, to, op);
+      return;
+    }
+    if (to > from || !DecodedProgram.isJump(op) || traces[to] != null) {
+      return;
+    }
+    if (++counters[to] == HOT_THRESHOLD) {
+      recordingHead = to;
+      expectedPc = to;
+      pathLength = 0;
+    }
+  }
+
+  private void record(int from, int to, int op) {
+    if (from != expectedPc) {
+      // pc was modified outside of the observed ticks, so the path is not contiguous
+      counters[recordingHead] = 0;
+      recordingHead = -1;
+      return;
+    }
+    if (!DecodedProgram.isStraight(op) && !DecodedProgram.isJump(op)) {
+      // Memory transfers are left to the interpreter
+      stopRecording();
+      return;
+    }
+    path[pathLength++] = from;
+    expectedPc = to;
+    if (to == recordingHead) {
+      traces[recordingHead] = compiler.compileTrace(path, pathLength);
+      recordingHead = -1;
+      return;
+    }
+    if (pathLength == MAX_TRACE_LENGTH) {
+      stopRecording();
+    }
+  }
+
+  private void stopRecording() {
+    counters[recordingHead] = BLACKLISTED;
+    recordingHead = -1;
+  }
+}
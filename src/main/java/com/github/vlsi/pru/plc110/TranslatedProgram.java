@@ -0,0 +1,101 @@
+package com.github.vlsi.pru.plc110;
+
+import java.util.List;
+
+/**
+ * Base class for programs translated to Java source by {@link JavaSourceTranslator}.
+ * Memory transfers and unsupported instructions are executed with {@link Pru#tick()},
+ * so the program has to be loaded to the cpu with {@link #load(Pru)}.
+ */
+public abstract class TranslatedProgram {
+  private final Program program;
+
+  protected TranslatedProgram(int[] code) {
+    this.program = Program.of(code);
+  }
+
+  public Program getProgram() {
+    return program;
+  }
+
+  /**
+   * Returns the instructions of the program.
+   */
+  public List<Instruction> getInstructions() {
+    return program.getInstructions();
+  }
+
+  public void load(Pru cpu) {
+    cpu.setProgram(program);
+  }
+
+  /**
+   * Executes given number of cycles. The result is the same as calling {@link Pru#tick()}
+   * {@code cycles} times.
+   *
+   * @param cpu cpu to execute the program on
+   * @param cycles number of cycles to execute
+   */
+  public final void run(Pru cpu, int cycles) {
+    checkLoaded(cpu);
+    int[] state = new int[3];
+    while (cycles > 0) {
+      cycles -= step(cpu, state, cycles);
+    }
+  }
+
+  /**
+   * Executes the program till it reaches the end, see {@link Pru#runTillHalt(int)}.
+   *
+   * @param cpu cpu to execute the program on
+   * @param timeout maximum number of cycles to execute
+   * @return number of executed cycles
+   */
+  public final int runTillHalt(Pru cpu, int timeout) {
+    checkLoaded(cpu);
+    int[] state = new int[3];
+    int maxPc = program.size();
+    for (int time = 0; time < timeout; ) {
+      if (cpu.pc == maxPc) {
+        return time;
+      }
+      time += step(cpu, state, timeout - time);
+    }
+    throw new IllegalStateException(
+        "Unable to finish execution in " + timeout + " ticks. " + cpu.printState());
+  }
+
+  private void checkLoaded(Pru cpu) {
+    if (cpu.getProgram() != program) {
+      throw new IllegalStateException("Program is not loaded to the cpu, please use load(cpu)");
+    }
+  }
+
+  private int step(Pru cpu, int[] state, int maxCycles) {
+    state[0] = cpu.pc;
+    state[1] = cpu.carry();
+    state[2] = 0;
+    int cycles = execute(cpu.registers, state, maxCycles);
+    cpu.pc = state[0];
+    cpu.setCarry(state[1]);
+    if (cycles == 0) {
+      cpu.tick();
+      return 1;
+    }
+    cpu.cycleCount += cycles;
+    cpu.cycleCountNonReset += cycles;
+    return cycles;
+  }
+
+  /**
+   * Executes the translated instructions.
+   *
+   * @param registers register file
+   * @param state {@code state[0]} is pc, {@code state[1]} is carry, the implementation sets
+   *              {@code state[2]} to 1 when it stops at an instruction that should
+   *              be executed by {@link Pru#tick()}
+   * @param cycles the maximum number of cycles to execute
+   * @return the number of executed cycles
+   */
+  protected abstract int execute(int[] registers, int[] state, int cycles);
+}
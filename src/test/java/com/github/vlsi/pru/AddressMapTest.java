@@ -0,0 +1,139 @@
+package com.github.vlsi.pru;
+
+import com.github.vlsi.pru.plc110.ExecutionMode;
+import com.github.vlsi.pru.plc110.MemoryTransferInstruction;
+import com.github.vlsi.pru.plc110.MmioDevice;
+import com.github.vlsi.pru.plc110.Pru;
+import com.github.vlsi.pru.plc110.Register;
+import com.github.vlsi.pru.plc110.RegisterField;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+public class AddressMapTest {
+  private static final Register R1 = new Register(1, RegisterField.dw);
+  private static final Register R2 = new Register(2, RegisterField.dw);
+  private static final Register R10 = new Register(10, RegisterField.dw);
+
+  @DataProvider
+  public Iterator<Object[]> modes() {
+    return Arrays.stream(ExecutionMode.values())
+        .map(mode -> new Object[]{mode})
+        .iterator();
+  }
+
+  private static MemoryTransferInstruction constantTransfer(
+      MemoryTransferInstruction.Operation op, Register reg, int entry, int offset) {
+    return new MemoryTransferInstruction(op, reg)
+        .setAddress(entry).setOffset(offset).setLength(4).encode();
+  }
+
+  private static MemoryTransferInstruction registerTransfer(
+      MemoryTransferInstruction.Operation op, Register reg, int offset) {
+    return new MemoryTransferInstruction(op, reg)
+        .setAddress(R10).setOffset(offset).setLength(4).encode();
+  }
+
+  @Test(dataProvider = "modes")
+  public void sharedRam(ExecutionMode mode) {
+    Pru cpu = new Pru(mode);
+    cpu.setInstructions(
+        constantTransfer(MemoryTransferInstruction.Operation.STORE, R1, 28, 0x10),
+        constantTransfer(MemoryTransferInstruction.Operation.LOAD, R2, 28, 0x10));
+    cpu.setReg(R1, 0x12345678);
+    cpu.runTillHalt(100);
+    Assert.assertEquals(cpu.getRamInt(0x10010), 0x12345678, "shared RAM at 0x10");
+    Assert.assertEquals(cpu.getReg(R2), 0x12345678, "R2");
+  }
+
+  @Test(dataProvider = "modes")
+  public void localDataConstantsDependOnCpu(ExecutionMode mode) {
+    Pru cpu = new Pru(1, mode);
+    cpu.setInstructions(
+        constantTransfer(MemoryTransferInstruction.Operation.STORE, R1, 3, 0),
+        constantTransfer(MemoryTransferInstruction.Operation.STORE, R2, 4, 0));
+    cpu.setReg(R1, 1);
+    cpu.setReg(R2, 2);
+    cpu.runTillHalt(100);
+    Assert.assertEquals(cpu.getRamInt(0x2000), 1, "C3 of PRU1 is PRU1 data RAM");
+    Assert.assertEquals(cpu.getRamInt(0), 2, "C4 of PRU1 is PRU0 data RAM");
+  }
+
+  @Test(dataProvider = "modes", expectedExceptions = IllegalStateException.class,
+      expectedExceptionsMessageRegExp = "Invalid memory access.*")
+  public void unmappedAccessFails(ExecutionMode mode) {
+    Pru cpu = new Pru(mode);
+    cpu.setInstructions(
+        registerTransfer(MemoryTransferInstruction.Operation.STORE, R1, 0));
+    cpu.setReg(R10, 0x8000);
+    cpu.runTillHalt(100);
+  }
+
+  @Test(dataProvider = "modes")
+  public void spareRamIsMapped(ExecutionMode mode) {
+    Pru cpu = new Pru(mode);
+    cpu.setInstructions(
+        registerTransfer(MemoryTransferInstruction.Operation.STORE, R1, 9));
+    cpu.setReg(R10, 0x5600);
+    cpu.setReg(R1, 0x12345678);
+    cpu.runTillHalt(100);
+    Assert.assertEquals(cpu.getRamInt(0x5609), 0x12345678, "spare RAM at 0x5609");
+    cpu.setRamInt(0x7400, 42);
+    Assert.assertEquals(cpu.ram().getInt(0x7400), 42, "spare RAM at 0x7400");
+  }
+
+  @Test(dataProvider = "modes", expectedExceptions = IllegalStateException.class,
+      expectedExceptionsMessageRegExp = "Invalid memory access.*")
+  public void peripheralIsNotMapped(ExecutionMode mode) {
+    Pru cpu = new Pru(mode);
+    cpu.setInstructions(
+        constantTransfer(MemoryTransferInstruction.Operation.LOAD, R1, 7, 0));
+    cpu.runTillHalt(100);
+  }
+
+  @Test(dataProvider = "modes")
+  public void deviceHandlesAccesses(ExecutionMode mode) {
+    List<String> log = new ArrayList<>();
+    Pru cpu = new Pru(mode);
+    cpu.mapDevice(0x4000, 0x200, new MmioDevice() {
+      @Override
+      public byte read(int offset) {
+        log.add("read " + Integer.toHexString(offset));
+        return (byte) offset;
+      }
+
+      @Override
+      public void write(int offset, byte value) {
+        log.add("write " + Integer.toHexString(offset) + "=" + value);
+      }
+    });
+    cpu.setInstructions(
+        registerTransfer(MemoryTransferInstruction.Operation.STORE, R1, 0xfe),
+        registerTransfer(MemoryTransferInstruction.Operation.LOAD, R2, 0x10));
+    cpu.setReg(R10, 0x4000);
+    cpu.setReg(R1, 0x04030201);
+    cpu.runTillHalt(100);
+    Assert.assertEquals(log.toString(),
+        "[write fe=1, write ff=2, write 100=3, write 101=4, read 10, read 11, read 12, read 13]");
+    Assert.assertEquals(Integer.toHexString(cpu.getReg(R2)), "13121110", "R2");
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void deviceCannotOverlapRam() {
+    new Pru().mapDevice(0x1f00, 0x200, new MmioDevice() {
+      @Override
+      public byte read(int offset) {
+        return 0;
+      }
+
+      @Override
+      public void write(int offset, byte value) {
+      }
+    });
+  }
+}
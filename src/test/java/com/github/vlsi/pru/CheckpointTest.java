@@ -0,0 +1,82 @@
+package com.github.vlsi.pru;
+
+import com.github.vlsi.pru.plc110.BinaryCode;
+import com.github.vlsi.pru.plc110.CodeEmitter;
+import com.github.vlsi.pru.plc110.ExecutionMode;
+import com.github.vlsi.pru.plc110.Program;
+import com.github.vlsi.pru.plc110.Pru;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import st61131.pru.PRU_MATERIAL_CUTTER_Program_CodeGenerator;
+import st61131.pru.PRU_STEP_CONTROL_CodeGenerator;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+public class CheckpointTest {
+  private static Program program(Consumer<CodeEmitter> generator) {
+    CodeEmitter ce = new CodeEmitter();
+    generator.accept(ce);
+    BinaryCode code = ce.visitEnd();
+    return Program.of(code);
+  }
+
+  @Test
+  public void resumeFromCheckpoint() throws IOException {
+    Program program = program(new PRU_STEP_CONTROL_CodeGenerator());
+    Pru expected = new Pru(ExecutionMode.INTERPRETER);
+    expected.setProgram(program);
+    PruForkTest.runScanLoop(expected, 0, 50000);
+
+    Path file = Files.createTempFile("pru", ".checkpoint");
+    try {
+      expected.saveCheckpoint(file);
+      Assert.assertTrue(Files.size(file) < 0x7bff / 4,
+          "zero pages should not be stored, file size is " + Files.size(file));
+
+      Pru actual = new Pru(ExecutionMode.COMPILED);
+      actual.setProgram(program);
+      actual.loadCheckpoint(file);
+      ExecutionModeTest.assertSameState(actual, expected, "loaded state");
+
+      PruForkTest.runScanLoop(expected, 1, 20000);
+      PruForkTest.runScanLoop(actual, 1, 20000);
+      ExecutionModeTest.assertSameState(actual, expected, "resumed state");
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void differentProgramIsRejected() throws IOException {
+    Pru cpu = new Pru();
+    cpu.setProgram(program(new PRU_STEP_CONTROL_CodeGenerator()));
+    Path file = Files.createTempFile("pru", ".checkpoint");
+    try {
+      cpu.saveCheckpoint(file);
+      Pru other = new Pru();
+      other.setProgram(program(new PRU_MATERIAL_CUTTER_Program_CodeGenerator()));
+      other.loadCheckpoint(file);
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  @Test(expectedExceptions = IOException.class)
+  public void truncatedCheckpointIsRejected() throws IOException {
+    Pru cpu = new Pru();
+    cpu.setRamInt(0x100, 42);
+    Path file = Files.createTempFile("pru", ".checkpoint");
+    try {
+      cpu.saveCheckpoint(file);
+      byte[] bytes = Files.readAllBytes(file);
+      Files.write(file, Arrays.copyOf(bytes, bytes.length - 1));
+      cpu.loadCheckpoint(file);
+    } finally {
+      Files.delete(file);
+    }
+  }
+}
@@ -19,7 +19,7 @@ public class CodeEmitterTest {
     QuickBranchInstruction qb = new QuickBranchInstruction(start);
     ce.visitInstruction(qb);
     ce.visitEnd();
-    Assert.assertEquals(qb.offset, -1);
+    Assert.assertEquals(qb.getOffset(), -1);
   }
 
   @Test
@@ -31,7 +31,7 @@ public class CodeEmitterTest {
     ce.visitInstruction(new LdiInstruction(CommonRegisters.R1_b0, (short) 42));
     ce.visitLabel(end);
     ce.visitEnd();
-    Assert.assertEquals(qb.offset, 2);
+    Assert.assertEquals(qb.getOffset(), 2);
   }
 
   @Test
@@ -43,7 +43,7 @@ public class CodeEmitterTest {
     JumpInstruction jmp = new JumpInstruction(Format2Instruction.Operation.JMP, start, CommonRegisters.R1);
     ce.visitInstruction(jmp);
     ce.visitEnd();
-    Assert.assertEquals(jmp.op2, 0);
+    Assert.assertEquals(jmp.getOp2(), 0);
   }
 
   @Test
@@ -55,6 +55,6 @@ public class CodeEmitterTest {
     ce.visitInstruction(new LdiInstruction(CommonRegisters.R1_b0, (short) 42));
     ce.visitLabel(end);
     ce.visitEnd();
-    Assert.assertEquals(jmp.op2, 2);
+    Assert.assertEquals(jmp.getOp2(), 2);
   }
 }
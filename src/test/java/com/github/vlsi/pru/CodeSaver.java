@@ -28,8 +28,8 @@ public class CodeSaver {
     List<Instruction> instructions = code.getInstructions();
     ByteBuffer bb = ByteBuffer.allocate(instructions.size() * 4).order(ByteOrder.LITTLE_ENDIAN);
     for (Instruction ins : instructions) {
-      bb.putInt(ins.code);
-      Instruction dc = Instruction.of(ins.code);
+      bb.putInt(ins.getCode());
+      Instruction dc = Instruction.of(ins.getCode());
       ins.setComment(null);
       Assert.assertEquals(dc.toString(), ins.toString());
     }
@@ -44,8 +44,8 @@ public class CodeSaver {
           ins = new LdiInstruction(ld.dstRegister, (short) 0x780c);
         }
       }
-      bb.putInt(ins.code);
-      Instruction dc = Instruction.of(ins.code);
+      bb.putInt(ins.getCode());
+      Instruction dc = Instruction.of(ins.getCode());
       ins.setComment(null);
       Assert.assertEquals(dc.toString(), ins.toString());
     }
@@ -0,0 +1,143 @@
+package com.github.vlsi.pru;
+
+import com.github.vlsi.pru.plc110.ArithmeticInstruction;
+import com.github.vlsi.pru.plc110.ExecutionMode;
+import com.github.vlsi.pru.plc110.Instruction;
+import com.github.vlsi.pru.plc110.LdiInstruction;
+import com.github.vlsi.pru.plc110.MemoryTransferInstruction;
+import com.github.vlsi.pru.plc110.Pru;
+import com.github.vlsi.pru.plc110.Register;
+import com.github.vlsi.pru.plc110.RegisterField;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+
+public class ControlRegistersTest {
+  private static final int CONTROL = 0x7000;
+  private static final int CYCLE = 0x700C;
+  private static final int STALL = 0x7010;
+  private static final Register R1 = new Register(1, RegisterField.dw);
+  private static final Register R2 = new Register(2, RegisterField.dw);
+  private static final Register R3 = new Register(3, RegisterField.dw);
+  private static final Register R10 = new Register(10, RegisterField.dw);
+
+  @DataProvider
+  public Iterator<Object[]> modes() {
+    return Arrays.stream(ExecutionMode.values())
+        .map(mode -> new Object[]{mode})
+        .iterator();
+  }
+
+  private static Instruction ldi(Register reg, int value) {
+    return new LdiInstruction(reg, (short) value);
+  }
+
+  private static Instruction transfer(MemoryTransferInstruction.Operation op, Register reg) {
+    return new MemoryTransferInstruction(op, reg)
+        .setAddress(R10).setOffset(0).setLength(4).encode();
+  }
+
+  @Test(dataProvider = "modes")
+  public void cycleIsSampledAtTransferStart(ExecutionMode mode) {
+    Pru cpu = new Pru(mode);
+    cpu.setInstructions(
+        ldi(R10, CYCLE),
+        ldi(R1, 0),
+        ldi(R1, 0),
+        transfer(MemoryTransferInstruction.Operation.LOAD, R2));
+    int cycles = cpu.runTillHalt(100);
+    Assert.assertEquals(cpu.getReg(R2), 4, "CYCLE includes the first cycle of the transfer");
+    Assert.assertEquals(cpu.getRamInt(CYCLE), cycles, "CYCLE read by host");
+  }
+
+  @Test(dataProvider = "modes")
+  public void ramShowsControlRegisters(ExecutionMode mode) {
+    Pru cpu = new Pru(mode);
+    cpu.setInstructions(
+        ldi(R10, CYCLE),
+        ldi(R1, 0),
+        ldi(R1, 0),
+        transfer(MemoryTransferInstruction.Operation.LOAD, R2),
+        ldi(R1, 0));
+    ByteBuffer ram = cpu.ram();
+    Assert.assertEquals(ram.getInt(CONTROL), 0xb, "CONTROL after reset");
+    int cycles = cpu.runTillHalt(100);
+    Assert.assertEquals(ram.getInt(CYCLE), 4, "CYCLE sampled by the transfer");
+    Assert.assertEquals(cpu.ram().getInt(CYCLE), cycles, "CYCLE sampled by ram()");
+    Assert.assertEquals(ram.getInt(CYCLE), cycles, "the views share the copy");
+  }
+
+  @Test(dataProvider = "modes")
+  public void stallCountsTransferWaits(ExecutionMode mode) {
+    Pru cpu = new Pru(mode);
+    cpu.setInstructions(
+        ldi(R10, 0x100),
+        transfer(MemoryTransferInstruction.Operation.LOAD, R2));
+    int cycles = cpu.runTillHalt(100);
+    Assert.assertEquals(cpu.getRamInt(STALL), cycles - 2,
+        "LBBO takes one cycle plus the stall");
+  }
+
+  @Test(dataProvider = "modes")
+  public void writeRestartsCounter(ExecutionMode mode) {
+    Pru cpu = new Pru(mode);
+    cpu.setInstructions(
+        ldi(R1, 0),
+        ldi(R1, 0),
+        ldi(R10, CYCLE),
+        ldi(R1, 1000),
+        transfer(MemoryTransferInstruction.Operation.STORE, R1),
+        ldi(R1, 0));
+    cpu.runTillHalt(100);
+    Assert.assertEquals(cpu.getCycleCount(), 1002, "CYCLE after the write and one more cycle");
+    Assert.assertEquals(cpu.getRamInt(CYCLE), 1002, "CYCLE read by host");
+  }
+
+  @Test(dataProvider = "modes")
+  public void writingSampledValueKeepsCounter(ExecutionMode mode) {
+    Pru cpu = new Pru(mode);
+    Register r4 = new Register(4, RegisterField.dw);
+    cpu.setInstructions(
+        ldi(R10, CONTROL),
+        ldi(R1, 0xb),
+        ldi(R2, 0),
+        ldi(R3, 0),
+        ldi(r4, 6),
+        // Burst over CONTROL..CYCLE, CYCLE gets the value the transfer samples
+        new MemoryTransferInstruction(MemoryTransferInstruction.Operation.STORE, R1)
+            .setAddress(R10).setOffset(0).setLength(16).encode(),
+        ldi(R1, 0));
+    int cycles = cpu.runTillHalt(100);
+    Assert.assertEquals(cpu.getCycleCount(), cycles, "CYCLE is not restarted");
+    Assert.assertEquals(cpu.getRamInt(CYCLE), cycles, "CYCLE read by host");
+  }
+
+  @Test(dataProvider = "modes")
+  public void disabledCounterIsFrozen(ExecutionMode mode) {
+    Pru cpu = new Pru(mode);
+    cpu.setInstructions(
+        ldi(R10, CONTROL),
+        transfer(MemoryTransferInstruction.Operation.LOAD, R1),
+        ldi(R3, 1 << 3),
+        new ArithmeticInstruction(
+            ArithmeticInstruction.Operation.XOR, R1, R1, R3),
+        transfer(MemoryTransferInstruction.Operation.STORE, R1),
+        ldi(R1, 0),
+        ldi(R1, 0),
+        ldi(R10, CYCLE),
+        transfer(MemoryTransferInstruction.Operation.LOAD, R2));
+    cpu.runTillHalt(100);
+    int frozen = cpu.getRamInt(CYCLE);
+    Assert.assertEquals(cpu.getReg(R2), frozen, "CYCLE does not change while disabled");
+    Assert.assertEquals(cpu.getRamInt(CONTROL) & (1 << 3), 0, "COUNTER_ENABLE");
+
+    cpu.setRamInt(CONTROL, cpu.getRamInt(CONTROL) | 1 << 3);
+    cpu.setPc(5);
+    cpu.runTillHalt(100);
+    Assert.assertEquals(cpu.getReg(R2), frozen + 4, "counter continues after it is enabled");
+  }
+}
@@ -28,8 +28,8 @@ public class CpuEmulatorTest {
     ArithmeticInstruction subW0W0_1 = new ArithmeticInstruction(
         ArithmeticInstruction.Operation.SUB,
         R1_w0, R1_w0, (byte) 1);
-    bb.putInt(subW0W0_1.code);
-    bb.putInt(subW0W0_1.code);
+    bb.putInt(subW0W0_1.getCode());
+    bb.putInt(subW0W0_1.getCode());
     bb.flip();
     cpu.setInstructions(new Decoder().decode(bb));
 
@@ -47,7 +47,7 @@ public class CpuEmulatorTest {
     Pru cpu = new Pru();
     ByteBuffer bb = ByteBuffer.allocate(4);
     int value = 12345;
-    bb.putInt(new LdiInstruction(R1_w1, (short) value).code);
+    bb.putInt(new LdiInstruction(R1_w1, (short) value).getCode());
     bb.flip();
     cpu.setInstructions(new Decoder().decode(bb));
 
@@ -64,7 +64,7 @@ public class CpuEmulatorTest {
     bb.putInt(new QuickBranchInstruction(
         QuickBranchInstruction.Operation.GT, new Label("test").setRelativeOffset(offset),
         R1_w1,
-        (byte) 42).code);
+        (byte) 42).getCode());
     bb.flip();
     cpu.setInstructions(new Decoder().decode(bb));
 
@@ -81,19 +81,19 @@ public class CpuEmulatorTest {
     // b0 = 189
     bb.putInt(
         new ArithmeticInstruction(ArithmeticInstruction.Operation.ADD,
-            R1_b0, R1_b0, (byte) 189).code);
+            R1_b0, R1_b0, (byte) 189).getCode());
     // b1 = 190
     bb.putInt(
         new ArithmeticInstruction(ArithmeticInstruction.Operation.ADD,
-            R1_b1, R1_b1, (byte) 190).code);
+            R1_b1, R1_b1, (byte) 190).getCode());
     // b2 = b1 + b0 -> should carry
     bb.putInt(
         new ArithmeticInstruction(ArithmeticInstruction.Operation.ADD,
-            R1_b2, R1_b1, R1_b0).code);
+            R1_b2, R1_b1, R1_b0).getCode());
     // b3 = b3 + 0 + carry
     bb.putInt(
         new ArithmeticInstruction(ArithmeticInstruction.Operation.ADC,
-            R1_b3, R1_b3, (byte) 0).code);
+            R1_b3, R1_b3, (byte) 0).getCode());
     bb.flip();
     cpu.setInstructions(new Decoder().decode(bb));
 
@@ -7,7 +7,11 @@ import static com.github.vlsi.pru.CommonRegisters.R1_b2;
 import static com.github.vlsi.pru.CommonRegisters.R1_w0;
 import static com.github.vlsi.pru.CommonRegisters.R1_w1;
 
+import com.github.vlsi.pru.plc110.ExecutionMode;
+import com.github.vlsi.pru.plc110.MemoryTransferInstruction;
 import com.github.vlsi.pru.plc110.Pru;
+import com.github.vlsi.pru.plc110.Register;
+import com.github.vlsi.pru.plc110.RegisterField;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
@@ -24,4 +28,38 @@ public class CpuSimpleTest {
     Assert.assertEquals("0x" + Integer.toHexString(pru.getReg(R1_w1)), "0x302", "(3<<8) | 2");
     Assert.assertEquals("0x" + Integer.toHexString(pru.getReg(R1)), "0x30201", "(3<<16) | (2<<8) | 1");
   }
+
+  @Test
+  public void unalignedBurstTransfer() {
+    for (ExecutionMode mode : ExecutionMode.values()) {
+      Pru pru = new Pru(mode);
+      pru.setInstructions(
+          new MemoryTransferInstruction(MemoryTransferInstruction.Operation.STORE,
+              new Register(1, RegisterField.b1)).setAddress(new Register(10, RegisterField.dw))
+              .setOffset(2).setLength(13).encode(),
+          new MemoryTransferInstruction(MemoryTransferInstruction.Operation.LOAD,
+              new Register(20, RegisterField.b3)).setAddress(new Register(10, RegisterField.dw))
+              .setOffset(2).setLength(13).encode());
+      for (int i = 1; i <= 5; i++) {
+        pru.setReg(new Register(i, RegisterField.dw), 0x04030201 + 0x04040404 * (i - 1));
+      }
+      pru.setReg(new Register(10, RegisterField.dw), 0x101);
+      pru.runTillHalt(100);
+
+      for (int i = 0; i < 13; i++) {
+        Assert.assertEquals(pru.ram().get(0x103 + i), (byte) (2 + i),
+            mode + ": ram[0x103 + " + i + "]");
+      }
+      Assert.assertEquals(pru.ram().get(0x103 + 13), 0, mode + ": ram after the burst");
+      Assert.assertEquals(Integer.toHexString(pru.getReg(new Register(20, RegisterField.dw))),
+          "2000000", mode + ": R20");
+      Assert.assertEquals(Integer.toHexString(pru.getReg(new Register(21, RegisterField.dw))),
+          "6050403", mode + ": R21");
+      Assert.assertEquals(Integer.toHexString(pru.getReg(new Register(22, RegisterField.dw))),
+          "a090807", mode + ": R22");
+      Assert.assertEquals(Integer.toHexString(pru.getReg(new Register(23, RegisterField.dw))),
+          "e0d0c0b", mode + ": R23");
+      Assert.assertEquals(pru.getReg(new Register(24, RegisterField.dw)), 0, mode + ": R24");
+    }
+  }
 }
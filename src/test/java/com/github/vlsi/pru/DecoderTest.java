@@ -3,6 +3,10 @@ package com.github.vlsi.pru;
 import com.github.vlsi.pru.plc110.ArithmeticInstruction;
 import com.github.vlsi.pru.plc110.Decoder;
 import com.github.vlsi.pru.plc110.Instruction;
+import com.github.vlsi.pru.plc110.LdiInstruction;
+import com.github.vlsi.pru.plc110.Program;
+import com.github.vlsi.pru.plc110.Register;
+import com.github.vlsi.pru.plc110.RegisterField;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
@@ -10,6 +14,7 @@ import java.io.FileInputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
+import java.util.Arrays;
 import java.util.List;
 import java.util.stream.Collectors;
 
@@ -28,6 +33,67 @@ public class DecoderTest {
         0x00e1e1e1, 0x05018181);
   }
 
+  @Test
+  public void instructionsAreInterned() {
+    int[] code = {0x05018181, 0x00e1e1e1, 0x05018181};
+    List<Instruction> first = Program.of(code).getInstructions();
+    List<Instruction> second = Program.of(code).getInstructions();
+    Assert.assertSame(first.get(2), first.get(0), "same code in the same program");
+    Assert.assertNotSame(second.get(1), first.get(1), "programs do not share instances");
+    Assert.assertTrue(first.get(0).isShared(), "program instruction is shared");
+    Assert.assertFalse(Instruction.of(0x05018181).isShared(), "Instruction.of is private copy");
+    try {
+      first.get(0).setComment("comment");
+      Assert.fail("shared instruction should not be modified");
+    } catch (IllegalStateException expected) {
+      // ok
+    }
+  }
+
+  @Test
+  public void decoderReturnsMutableInstructions() {
+    ByteBuffer bb = ByteBuffer.allocate(8);
+    bb.asIntBuffer().put(new int[]{0x05018181, 0x05018181});
+    List<Instruction> ins = new Decoder().decode(bb);
+    Assert.assertNotSame(ins.get(1), ins.get(0), "decoder does not intern");
+    Assert.assertFalse(ins.get(0).isShared(), "decoded instruction is not shared");
+    ins.get(0).setComment("comment");
+    Assert.assertEquals(ins.get(0).getComment(), "comment");
+  }
+
+  @Test
+  public void programDecodesStrictly() {
+    try {
+      Program.of(new int[]{0x05018181, 0xa0000000});
+      Assert.fail("invalid instruction word should be rejected");
+    } catch (IllegalArgumentException expected) {
+      Assert.assertTrue(expected.getMessage().startsWith("Instruction 1 is invalid"),
+          expected.getMessage());
+    }
+  }
+
+  @Test
+  public void programKeepsComments() {
+    Instruction ldi = new LdiInstruction(new Register(1, RegisterField.w0), (short) 42)
+        .setComment("answer");
+    Program program = Program.of(Arrays.asList(ldi, Instruction.of(0x05018181)));
+    Instruction copy = program.getInstructions().get(0);
+    Assert.assertNotSame(copy, ldi, "given instruction should be copied");
+    Assert.assertEquals(copy.toString(), ldi.toString());
+    Assert.assertEquals(program.getComment(0), "answer");
+    Assert.assertTrue(copy.isShared(), "program instructions cannot be modified");
+    ldi.setComment("changed");
+    Assert.assertEquals(program.getComment(0), "answer");
+    Assert.assertEquals(copy.getComment(), "answer");
+  }
+
+  @Test
+  public void registersAreCanonical() {
+    Register r1w0 = Register.ofMask(new Register(1, RegisterField.w0).mask());
+    Assert.assertSame(Register.ofMask(r1w0.mask()), r1w0);
+    Assert.assertSame(r1w0.withField(RegisterField.dw), Register.ofMask(1 | 7 << 5));
+  }
+
   private void assertDecode(String expected, int... code) {
     int capacity = code.length * 4;
     ByteBuffer bb = ByteBuffer.allocate(capacity);
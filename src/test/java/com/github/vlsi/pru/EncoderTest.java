@@ -21,7 +21,7 @@ public class EncoderTest {
         .encode();
     String actual = ins.toString();
     Assert.assertEquals(actual, "LBBO R8.b3, R1.b0, R6.b2, 42");
-    Assert.assertEquals(new MemoryTransferInstruction(ins.code).toString(), actual);
+    Assert.assertEquals(new MemoryTransferInstruction(ins.getCode()).toString(), actual);
   }
 
   @Test
@@ -35,7 +35,7 @@ public class EncoderTest {
             .encode();
     String actual = ins.toString();
     Assert.assertEquals(actual, "LBCO R2.b0, C3, 0, 2");
-    Assert.assertEquals(new MemoryTransferInstruction(ins.code).toString(), "LBCO R2.b0, C3, 0, 2");
+    Assert.assertEquals(new MemoryTransferInstruction(ins.getCode()).toString(), "LBCO R2.b0, C3, 0, 2");
   }
 
   @Test
@@ -43,6 +43,6 @@ public class EncoderTest {
     Label l = new Label("+10").setRelativeOffset(10);
     QuickBranchInstruction qba = new QuickBranchInstruction(l);
     qba.resolveTarget(0);
-    Assert.assertEquals(Integer.toHexString(qba.code), "7900000a");
+    Assert.assertEquals(Integer.toHexString(qba.getCode()), "7900000a");
   }
 }
@@ -0,0 +1,449 @@
+package com.github.vlsi.pru;
+
+import com.github.vlsi.pru.plc110.ArithmeticInstruction;
+import com.github.vlsi.pru.plc110.BinaryCode;
+import com.github.vlsi.pru.plc110.CodeEmitter;
+import com.github.vlsi.pru.plc110.ExecutionMode;
+import com.github.vlsi.pru.plc110.Format2Instruction;
+import com.github.vlsi.pru.plc110.JumpInstruction;
+import com.github.vlsi.pru.plc110.Label;
+import com.github.vlsi.pru.plc110.LdiInstruction;
+import com.github.vlsi.pru.plc110.LeftMostBitDetectInstruction;
+import com.github.vlsi.pru.plc110.Program;
+import com.github.vlsi.pru.plc110.Pru;
+import com.github.vlsi.pru.plc110.QuickBranchInstruction;
+import com.github.vlsi.pru.plc110.Register;
+import com.github.vlsi.pru.plc110.RegisterField;
+import com.github.vlsi.pru.plc110.Tiering;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+import st61131.pru.PRU_MATERIAL_CUTTER_Program_CodeGenerator;
+import st61131.pru.PRU_MULDIV_CodeGenerator;
+import st61131.pru.PRU_PULSE_GENERATOR_CodeGenerator;
+import st61131.pru.PRU_STEPPER_CodeGenerator;
+import st61131.pru.PRU_STEP_CONTROL_CodeGenerator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+public class ExecutionModeTest {
+  private final static Register inReg = new Register(31, RegisterField.dw);
+
+  @DataProvider
+  public Iterator<Object[]> modes() {
+    return Arrays.stream(ExecutionMode.values())
+        .filter(mode -> mode != ExecutionMode.INTERPRETER)
+        .map(mode -> new Object[]{mode})
+        .iterator();
+  }
+
+  @DataProvider
+  public Iterator<Object[]> modesAndSeeds() {
+    List<Object[]> res = new ArrayList<>();
+    modes().forEachRemaining(mode -> {
+      for (int seed = 0; seed < 20; seed++) {
+        res.add(new Object[]{mode[0], seed});
+      }
+    });
+    return res.iterator();
+  }
+
+  private static BinaryCode generate(Consumer<CodeEmitter> generator) {
+    CodeEmitter ce = new CodeEmitter();
+    generator.accept(ce);
+    return ce.visitEnd();
+  }
+
+  static void assertSameState(Pru actual, Pru expected, String message) {
+    String state = message + ", expected state: " + expected.printState();
+    Assert.assertEquals(actual.getPc(), expected.getPc(), "pc. " + state);
+    for (int i = 0; i < 32; i++) {
+      Register reg = new Register(i, RegisterField.dw);
+      Assert.assertEquals(actual.getReg(reg), expected.getReg(reg), reg + ". " + state);
+    }
+    Assert.assertEquals(actual.getCarry(), expected.getCarry(), "carry. " + state);
+    Assert.assertEquals(actual.getCycleCount(), expected.getCycleCount(), "cycleCount. " + state);
+    Assert.assertEquals(actual.getCycleCountNonReset(), expected.getCycleCountNonReset(),
+        "cycleCountNonReset. " + state);
+    Assert.assertEquals(actual.ram(), expected.ram(), "ram. " + state);
+  }
+
+  private void runScanLoop(ExecutionMode mode, Consumer<CodeEmitter> generator, int ticks) {
+    BinaryCode code = generate(generator);
+    runScanLoop(mode, code, Program.of(code), ticks);
+  }
+
+  private void runScanLoop(ExecutionMode mode, BinaryCode code, Program program, int ticks) {
+    Pru expected = new Pru(ExecutionMode.INTERPRETER);
+    Pru actual = new Pru(mode);
+    expected.setCode(code);
+    actual.setProgram(program);
+
+    Random rnd = new Random(42);
+    for (int i = 0; i < ticks; ) {
+      // Toggle inputs, and request host exchange
+      int in = rnd.nextInt();
+      expected.setReg(inReg, in);
+      actual.setReg(inReg, in);
+      expected.ram().put(0, (byte) 1);
+      actual.ram().put(0, (byte) 1);
+
+      int cycles = 1 + rnd.nextInt(1000);
+      for (int j = 0; j < cycles; j++) {
+        expected.tick();
+      }
+      actual.run(cycles);
+      i += cycles;
+      assertSameState(actual, expected, mode + ", tick " + i);
+    }
+  }
+
+  @Test(dataProvider = "modes")
+  public void stepControl(ExecutionMode mode) {
+    runScanLoop(mode, new PRU_STEP_CONTROL_CodeGenerator(), 200000);
+  }
+
+  @Test(dataProvider = "modes")
+  public void materialCutter(ExecutionMode mode) {
+    runScanLoop(mode, new PRU_MATERIAL_CUTTER_Program_CodeGenerator(), 200000);
+  }
+
+  @Test(dataProvider = "modes")
+  public void pulseGenerator(ExecutionMode mode) {
+    runScanLoop(mode, new PRU_PULSE_GENERATOR_CodeGenerator(), 200000);
+  }
+
+  @Test(dataProvider = "modes")
+  public void loopWithSideExits(ExecutionMode mode) {
+    runScanLoop(mode, ce -> {
+      Register counter = new Register(1, RegisterField.dw);
+      Register acc = new Register(2, RegisterField.w0);
+      Register sum = new Register(3, RegisterField.dw);
+      Register left = new Register(4, RegisterField.dw);
+      Label start = new Label("start");
+      Label loop = new Label("loop");
+      Label even = new Label("even");
+      Label noInput = new Label("noInput");
+      ce.visitLabel(start);
+      ce.visitInstruction(new LdiInstruction(left, (short) 1000));
+      ce.visitLabel(loop);
+      ce.visitInstruction(new ArithmeticInstruction(
+          ArithmeticInstruction.Operation.ADD, counter, counter, 1));
+      ce.visitInstruction(new QuickBranchInstruction(
+          QuickBranchInstruction.Operation.BC, even, counter, 2));
+      ce.visitInstruction(new ArithmeticInstruction(
+          ArithmeticInstruction.Operation.XOR, acc, acc, counter));
+      ce.visitLabel(even);
+      ce.visitInstruction(new ArithmeticInstruction(
+          ArithmeticInstruction.Operation.ADC, sum, sum, acc));
+      ce.visitInstruction(new QuickBranchInstruction(
+          QuickBranchInstruction.Operation.BC, noInput, inReg, 5));
+      ce.visitInstruction(new ArithmeticInstruction(
+          ArithmeticInstruction.Operation.LSL, acc, acc, 1));
+      ce.visitLabel(noInput);
+      ce.visitInstruction(new ArithmeticInstruction(
+          ArithmeticInstruction.Operation.SUB, left, left, 1));
+      ce.visitInstruction(new QuickBranchInstruction(
+          QuickBranchInstruction.Operation.NE, loop, left, 0));
+      ce.visitInstruction(new QuickBranchInstruction(
+          QuickBranchInstruction.Operation.A, start, left, 0));
+    }, 200000);
+  }
+
+  @Test(dataProvider = "modes")
+  public void stepper(ExecutionMode mode) {
+    BinaryCode code = generate(new PRU_STEPPER_CodeGenerator());
+    Pru expected = new Pru(ExecutionMode.INTERPRETER);
+    Pru actual = new Pru(mode);
+    for (Pru cpu : new Pru[]{expected, actual}) {
+      cpu.setCode(code);
+      cpu.setReg(new Register(8, RegisterField.b1), 1); // enable =>
+      cpu.setReg(new Register(10, RegisterField.dw), 100); // accel_ramp =>
+      cpu.setReg(new Register(11, RegisterField.dw), 50); // decel_ramp =>
+      cpu.setReg(new Register(12, RegisterField.dw), 60); // max_speed =>
+      cpu.setReg(new Register(9, RegisterField.dw), 1000); // quantity =>
+    }
+    for (int i = 0; i < 1100; i++) {
+      expected.setPc(0);
+      actual.setPc(0);
+      Assert.assertEquals(actual.runTillHalt(10000), expected.runTillHalt(10000),
+          "runTillHalt time, iteration " + i);
+      assertSameState(actual, expected, mode + ", iteration " + i);
+    }
+  }
+
+  @Test(dataProvider = "modes")
+  public void mulDiv(ExecutionMode mode) {
+    BinaryCode code = generate(new PRU_MULDIV_CodeGenerator());
+    Pru expected = new Pru(ExecutionMode.INTERPRETER);
+    Pru actual = new Pru(mode);
+    expected.setCode(code);
+    actual.setCode(code);
+    Random rnd = new Random(42);
+    for (int i = 0; i < 1000; i++) {
+      for (int reg = 1; reg <= 3; reg++) {
+        int value = rnd.nextInt();
+        expected.setReg(new Register(reg, RegisterField.dw), value);
+        actual.setReg(new Register(reg, RegisterField.dw), value);
+      }
+      expected.setPc(0);
+      actual.setPc(0);
+      Assert.assertEquals(actual.runTillHalt(10000), expected.runTillHalt(10000),
+          "runTillHalt time, iteration " + i);
+      assertSameState(actual, expected, mode + ", iteration " + i);
+    }
+  }
+
+  @Test
+  public void tiering() {
+    BinaryCode code = generate(new PRU_MULDIV_CodeGenerator());
+    Pru cpu = new Pru(ExecutionMode.TIERED);
+    Tiering tiering = cpu.getTiering();
+    tiering.setThreshold(10);
+    cpu.setCode(code);
+    Assert.assertTrue(tiering.getBlockLength(0) > 0, "block length at pc=0");
+    for (int i = 0; i < 10; i++) {
+      cpu.setPc(0);
+      cpu.runTillHalt(10000);
+    }
+    Assert.assertEquals(tiering.getExecutionCount(0), 10, "execution count at pc=0");
+    Assert.assertFalse(tiering.isCompiled(0), "block at pc=0 should be interpreted");
+
+    cpu.setPc(0);
+    cpu.runTillHalt(10000);
+    Assert.assertTrue(tiering.isCompiled(0), "block at pc=0 should be compiled");
+    Assert.assertTrue(tiering.getCompiledBlockCount() > 0, "compiled block count");
+
+    tiering.deoptimizeAll();
+    Assert.assertFalse(tiering.isCompiled(0), "block at pc=0 should be deoptimized");
+    Assert.assertEquals(tiering.getExecutionCount(0), 0, "execution count after deoptimization");
+    Assert.assertEquals(tiering.getCompiledBlockCount(), 0, "compiled block count");
+
+    Assert.assertTrue(tiering.compile(0), "compile(0)");
+    Assert.assertTrue(tiering.isCompiled(0), "block at pc=0 should be compiled");
+    Assert.assertNull(new Pru().getTiering(), "tiering in PREDECODED mode");
+  }
+
+  private static Register randomRegister(Random rnd) {
+    return new Register(1 + rnd.nextInt(6), RegisterField.ofMask(rnd.nextInt(8)));
+  }
+
+  private static BinaryCode randomProgram(Random rnd, int size) {
+    CodeEmitter ce = new CodeEmitter();
+    List<Label> labels = new ArrayList<>();
+    for (int i = 0; i < size; i++) {
+      while (!labels.isEmpty() && rnd.nextInt(4) == 0) {
+        ce.visitLabel(labels.remove(rnd.nextInt(labels.size())));
+      }
+      int kind = rnd.nextInt(10);
+      if (kind < 6) {
+        ArithmeticInstruction.Operation op =
+            ArithmeticInstruction.Operation.values()[rnd.nextInt(16)];
+        if (rnd.nextBoolean()) {
+          ce.visitInstruction(new ArithmeticInstruction(op, randomRegister(rnd),
+              randomRegister(rnd), randomRegister(rnd)));
+        } else {
+          ce.visitInstruction(new ArithmeticInstruction(op, randomRegister(rnd),
+              randomRegister(rnd), rnd.nextInt(256)));
+        }
+      } else if (kind == 6) {
+        ce.visitInstruction(new LdiInstruction(randomRegister(rnd), (short) rnd.nextInt()));
+      } else if (kind == 7) {
+        ce.visitInstruction(rnd.nextBoolean()
+            ? new LeftMostBitDetectInstruction(randomRegister(rnd), randomRegister(rnd),
+            randomRegister(rnd))
+            : new LeftMostBitDetectInstruction(randomRegister(rnd), randomRegister(rnd),
+            (byte) rnd.nextInt(2)));
+      } else if (kind == 8) {
+        Label label = new Label("jmp" + i);
+        labels.add(label);
+        ce.visitInstruction(new JumpInstruction(
+            rnd.nextBoolean() ? Format2Instruction.Operation.JMP : Format2Instruction.Operation.JAL,
+            label, randomRegister(rnd)));
+      } else {
+        Label label = new Label("qb" + i);
+        labels.add(label);
+        QuickBranchInstruction.Operation op =
+            QuickBranchInstruction.Operation.values()[rnd.nextInt(10)];
+        ce.visitInstruction(rnd.nextBoolean()
+            ? new QuickBranchInstruction(op, label, randomRegister(rnd), randomRegister(rnd))
+            : new QuickBranchInstruction(op, label, randomRegister(rnd), rnd.nextInt(256)));
+      }
+    }
+    for (Label label : labels) {
+      ce.visitLabel(label);
+    }
+    return ce.visitEnd();
+  }
+
+  private static void randomLoops(Random rnd, CodeEmitter ce) {
+    Label start = new Label("start");
+    ce.visitLabel(start);
+    for (int i = 0; i < 5; i++) {
+      Label loop = new Label("loop" + i);
+      ce.visitLabel(loop);
+      for (int j = rnd.nextInt(4); j > 0; j--) {
+        Register reg = randomRegister(rnd);
+        ce.visitInstruction(new ArithmeticInstruction(
+            rnd.nextBoolean()
+                ? ArithmeticInstruction.Operation.ADD : ArithmeticInstruction.Operation.SUB,
+            reg, reg, rnd.nextInt(256)));
+      }
+      QuickBranchInstruction.Operation op =
+          QuickBranchInstruction.Operation.values()[1 + rnd.nextInt(9)];
+      Register src = rnd.nextInt(4) == 0 ? inReg : randomRegister(rnd);
+      ce.visitInstruction(rnd.nextBoolean()
+          ? new QuickBranchInstruction(op, loop, src, rnd.nextInt(256))
+          : new QuickBranchInstruction(op, loop, src, rnd.nextBoolean()
+              ? new Register(5, RegisterField.ofMask(rnd.nextInt(8))) : randomRegister(rnd)));
+      ce.visitInstruction(new ArithmeticInstruction(ArithmeticInstruction.Operation.XOR,
+          randomRegister(rnd), randomRegister(rnd), inReg));
+    }
+    ce.visitInstruction(new QuickBranchInstruction(start));
+  }
+
+  @Test(dataProvider = "modes")
+  public void sharedProgram(ExecutionMode mode) throws Exception {
+    BinaryCode code = generate(new PRU_MATERIAL_CUTTER_Program_CodeGenerator());
+    Program program = Program.of(code);
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<?>> units = new ArrayList<>();
+      for (int i = 0; i < 8; i++) {
+        units.add(executor.submit(() -> runScanLoop(mode, code, program, 50000)));
+      }
+      for (Future<?> unit : units) {
+        unit.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test(dataProvider = "modes")
+  public void superinstructionShapes(ExecutionMode mode) {
+    runScanLoop(mode, ce -> {
+      Register in = new Register(3, RegisterField.b2);
+      Register mem = new Register(2, RegisterField.b2);
+      Register tmp = new Register(4, RegisterField.b0);
+      Register edges = new Register(5, RegisterField.w0);
+      Register flags = new Register(6, RegisterField.dw);
+      Label start = new Label("start");
+      Label noEdge = new Label("noEdge");
+      Label noFlag = new Label("noFlag");
+      ce.visitLabel(start);
+      // Register moves, and PRU_RTRIG: XOR/AND/ADD
+      ce.visitInstruction(new ArithmeticInstruction(
+          ArithmeticInstruction.Operation.AND, in, inReg, 1));
+      ce.visitInstruction(new ArithmeticInstruction(
+          ArithmeticInstruction.Operation.ADD, new Register(7, RegisterField.w2), edges, 0));
+      ce.visitInstruction(new ArithmeticInstruction(
+          ArithmeticInstruction.Operation.ADD, new Register(3, RegisterField.b3), in, 0));
+      ce.visitInstruction(new ArithmeticInstruction(
+          ArithmeticInstruction.Operation.XOR, tmp, mem, 1));
+      ce.visitInstruction(new ArithmeticInstruction(
+          ArithmeticInstruction.Operation.AND, tmp, new Register(3, RegisterField.b3), tmp));
+      ce.visitInstruction(new ArithmeticInstruction(
+          ArithmeticInstruction.Operation.ADD, mem, new Register(3, RegisterField.b3), 0));
+      ce.visitInstruction(new QuickBranchInstruction(
+          QuickBranchInstruction.Operation.EQ, noEdge, tmp, 0));
+      ce.visitInstruction(new ArithmeticInstruction(
+          ArithmeticInstruction.Operation.ADD, edges, edges, 1));
+      ce.visitLabel(noEdge);
+      // LDI followed by compare
+      ce.visitInstruction(new LdiInstruction(new Register(8, RegisterField.w0), (short) 0x1234));
+      ce.visitInstruction(new QuickBranchInstruction(
+          QuickBranchInstruction.Operation.GE, noFlag, edges, new Register(8, RegisterField.w0)));
+      ce.visitInstruction(new ArithmeticInstruction(
+          ArithmeticInstruction.Operation.ADC, flags, flags, inReg));
+      ce.visitLabel(noFlag);
+      ce.visitInstruction(new LdiInstruction(new Register(8, RegisterField.w2), (short) 7));
+      ce.visitInstruction(new ArithmeticInstruction(
+          ArithmeticInstruction.Operation.ADD, new Register(9, RegisterField.dw), flags, 0));
+      ce.visitInstruction(new QuickBranchInstruction(start));
+    }, 200000);
+  }
+
+  @Test(dataProvider = "modes")
+  public void superinstructionsInRunTillHalt(ExecutionMode mode) {
+    BinaryCode code = generate(ce -> {
+      Register counter = new Register(1, RegisterField.w0);
+      Register sum = new Register(2, RegisterField.dw);
+      Label loop = new Label("loop");
+      ce.visitInstruction(new LdiInstruction(counter, (short) 20000));
+      ce.visitLabel(loop);
+      ce.visitInstruction(new ArithmeticInstruction(
+          ArithmeticInstruction.Operation.SUB, counter, counter, 1));
+      ce.visitInstruction(new ArithmeticInstruction(
+          ArithmeticInstruction.Operation.ADD, sum, sum, new Register(1, RegisterField.dw)));
+      ce.visitInstruction(new QuickBranchInstruction(
+          QuickBranchInstruction.Operation.NE, loop, counter, 0));
+    });
+    Pru expected = new Pru(ExecutionMode.INTERPRETER);
+    expected.setCode(code);
+    while (expected.getPc() != code.getInstructions().size()) {
+      expected.tick();
+    }
+    Pru actual = new Pru(mode);
+    actual.setCode(code);
+    int cycles = actual.runTillHalt(100000);
+    Assert.assertEquals(cycles, expected.getCycleCount(), "cycles");
+    assertSameState(actual, expected, mode.toString());
+  }
+
+  @Test(dataProvider = "modesAndSeeds")
+  public void affineLoops(ExecutionMode mode, int seed) {
+    runScanLoop(mode, ce -> randomLoops(new Random(seed), ce), 100000);
+  }
+
+  @Test(timeOut = 10000)
+  public void countdownLoopIsFastForwarded() {
+    BinaryCode code = generate(ce -> {
+      Register left = new Register(4, RegisterField.dw);
+      Label loop = new Label("loop");
+      ce.visitLabel(loop);
+      ce.visitInstruction(new ArithmeticInstruction(
+          ArithmeticInstruction.Operation.SUB, left, left, 2));
+      ce.visitInstruction(new QuickBranchInstruction(
+          QuickBranchInstruction.Operation.NE, loop, left, 0));
+    });
+    Pru cpu = new Pru();
+    cpu.setCode(code);
+    cpu.setReg(new Register(4, RegisterField.dw), 2000000000);
+    Assert.assertEquals(cpu.runTillHalt(Integer.MAX_VALUE), 2000000000,
+        "1000000000 iterations, 2 cycles each");
+    Assert.assertEquals(cpu.getReg(new Register(4, RegisterField.dw)), 0, "R4");
+    Assert.assertFalse(cpu.getCarry(), "carry");
+    Assert.assertEquals(cpu.getCycleCount(), 2000000000, "cycleCount");
+  }
+
+  @Test(dataProvider = "modesAndSeeds")
+  public void randomInstructions(ExecutionMode mode, int seed) {
+    Random rnd = new Random(seed);
+    BinaryCode code = randomProgram(rnd, 300);
+    Pru expected = new Pru(ExecutionMode.INTERPRETER);
+    Pru actual = new Pru(mode);
+    expected.setCode(code);
+    actual.setCode(code);
+    for (int i = 0; i < 50; i++) {
+      for (int reg = 1; reg <= 6; reg++) {
+        int value = rnd.nextInt();
+        expected.setReg(new Register(reg, RegisterField.dw), value);
+        actual.setReg(new Register(reg, RegisterField.dw), value);
+      }
+      expected.setPc(0);
+      actual.setPc(0);
+      Assert.assertEquals(actual.runTillHalt(10000), expected.runTillHalt(10000),
+          "runTillHalt time, seed " + seed + ", iteration " + i);
+      assertSameState(actual, expected, mode + ", seed " + seed + ", iteration " + i);
+    }
+  }
+}
@@ -0,0 +1,120 @@
+package com.github.vlsi.pru;
+
+import com.github.vlsi.pru.plc110.ExecutionMode;
+import com.github.vlsi.pru.plc110.ExternalMemory;
+import com.github.vlsi.pru.plc110.MemoryTransferInstruction;
+import com.github.vlsi.pru.plc110.Pru;
+import com.github.vlsi.pru.plc110.Register;
+import com.github.vlsi.pru.plc110.RegisterField;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Iterator;
+
+public class ExternalMemoryTest {
+  private static final int SIZE = 64 << 20;
+  private static final Register R1 = new Register(1, RegisterField.dw);
+  private static final Register R2 = new Register(2, RegisterField.dw);
+  private static final Register R10 = new Register(10, RegisterField.dw);
+
+  @DataProvider
+  public Iterator<Object[]> modes() {
+    return Arrays.stream(ExecutionMode.values())
+        .map(mode -> new Object[]{mode})
+        .iterator();
+  }
+
+  private static MemoryTransferInstruction registerTransfer(
+      MemoryTransferInstruction.Operation op, Register reg, int offset, int length) {
+    return new MemoryTransferInstruction(op, reg)
+        .setAddress(R10).setOffset(offset).setLength(length).encode();
+  }
+
+  @Test(dataProvider = "modes")
+  public void programAccessesFile(ExecutionMode mode) throws IOException {
+    Path file = Files.createTempFile("ddr", ".bin");
+    try {
+      ExternalMemory ddr = ExternalMemory.map(file, SIZE);
+      ddr.buffer().putInt(SIZE - 4, 0x12345678);
+      Pru cpu = new Pru(mode);
+      cpu.mapExternalMemory(ExternalMemory.DDR, ddr);
+      cpu.setInstructions(
+          registerTransfer(MemoryTransferInstruction.Operation.LOAD, R2, 0, 4));
+      cpu.setReg(R10, ExternalMemory.DDR + SIZE - 4);
+      cpu.runTillHalt(100);
+      Assert.assertEquals(Integer.toHexString(cpu.getReg(R2)), "12345678", "R2");
+
+      cpu.setInstructions(
+          registerTransfer(MemoryTransferInstruction.Operation.STORE, R1, 1, 7),
+          new MemoryTransferInstruction(MemoryTransferInstruction.Operation.STORE, R1)
+              .setAddress(31).setOffset(0x10).setLength(4).encode());
+      cpu.setReg(R10, ExternalMemory.DDR + 0x100000);
+      cpu.setReg(R1, 0x04030201);
+      cpu.setReg(R2, 0x08070605);
+      cpu.setPc(0);
+      cpu.runTillHalt(100);
+      ddr.force();
+
+      ByteBuffer contents = ByteBuffer.wrap(Files.readAllBytes(file))
+          .order(ByteOrder.LITTLE_ENDIAN);
+      Assert.assertEquals(contents.capacity(), SIZE, "file size");
+      Assert.assertEquals(Integer.toHexString(contents.getInt(0x100001)), "4030201",
+          "SBBO via register");
+      Assert.assertEquals(Integer.toHexString(contents.getInt(0x100005)), "70605",
+          "unaligned tail");
+      Assert.assertEquals(Integer.toHexString(contents.getInt(0x10)), "4030201",
+          "SBCO via C31");
+      Assert.assertEquals(cpu.getRamInt(ExternalMemory.DDR + 0x10), 0x04030201, "host access");
+    } finally {
+      Files.deleteIfExists(file);
+    }
+  }
+
+  @Test(expectedExceptions = IllegalStateException.class,
+      expectedExceptionsMessageRegExp = "Invalid memory access.*")
+  public void accessBeyondRegionFails() throws IOException {
+    Path file = Files.createTempFile("ddr", ".bin");
+    try {
+      Pru cpu = new Pru();
+      cpu.mapExternalMemory(ExternalMemory.DDR, ExternalMemory.map(file, 0x1000));
+      cpu.setInstructions(
+          registerTransfer(MemoryTransferInstruction.Operation.LOAD, R2, 0, 8));
+      cpu.setReg(R10, ExternalMemory.DDR + 0xffc);
+      cpu.runTillHalt(100);
+    } finally {
+      Files.deleteIfExists(file);
+    }
+  }
+
+  @Test
+  public void forksShareRegion() throws IOException {
+    Path file = Files.createTempFile("ddr", ".bin");
+    try {
+      Pru parent = new Pru();
+      parent.mapExternalMemory(ExternalMemory.DDR, ExternalMemory.map(file, 0x1000));
+      Pru child = parent.fork();
+      child.setRamInt(ExternalMemory.DDR, 42);
+      parent.reset();
+      Assert.assertEquals(parent.getRamInt(ExternalMemory.DDR), 42, "parent");
+    } finally {
+      Files.deleteIfExists(file);
+    }
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void regionCannotOverlapRam() throws IOException {
+    Path file = Files.createTempFile("ddr", ".bin");
+    try {
+      new Pru().mapExternalMemory(0x10000, ExternalMemory.map(file, 0x1000));
+    } finally {
+      Files.deleteIfExists(file);
+    }
+  }
+}
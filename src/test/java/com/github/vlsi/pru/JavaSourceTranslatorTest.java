@@ -0,0 +1,144 @@
+package com.github.vlsi.pru;
+
+import com.github.vlsi.pru.plc110.BinaryCode;
+import com.github.vlsi.pru.plc110.CodeEmitter;
+import com.github.vlsi.pru.plc110.ExecutionMode;
+import com.github.vlsi.pru.plc110.JavaSourceTranslator;
+import com.github.vlsi.pru.plc110.Pru;
+import com.github.vlsi.pru.plc110.Register;
+import com.github.vlsi.pru.plc110.RegisterField;
+import com.github.vlsi.pru.plc110.TranslatedProgram;
+import org.testng.Assert;
+import org.testng.SkipException;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+import st61131.pru.PRU_MATERIAL_CUTTER_Program_CodeGenerator;
+import st61131.pru.PRU_MULDIV_CodeGenerator;
+import st61131.pru.PRU_PULSE_GENERATOR_CodeGenerator;
+import st61131.pru.PRU_STEP_CONTROL_CodeGenerator;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+public class JavaSourceTranslatorTest {
+  private final static Register inReg = new Register(31, RegisterField.dw);
+
+  // Translated classes might be loaded lazily, so the directories are deleted after the test
+  private final List<Path> tempDirs = new ArrayList<>();
+
+  @AfterMethod(alwaysRun = true)
+  public void deleteTempDirs() throws Exception {
+    for (Path dir : tempDirs) {
+      try (Stream<Path> files = Files.walk(dir)) {
+        for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+          Files.delete(file);
+        }
+      }
+    }
+    tempDirs.clear();
+  }
+
+  private TranslatedProgram compile(Consumer<CodeEmitter> generator, String className)
+      throws Exception {
+    JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+    if (javac == null) {
+      throw new SkipException("Java compiler is not available");
+    }
+    String source = JavaSourceTranslator.translate(generator, "translated." + className);
+    Path dir = Files.createTempDirectory("translated");
+    tempDirs.add(dir);
+    Path file = dir.resolve("translated").resolve(className + ".java");
+    Files.createDirectories(file.getParent());
+    Files.write(file, source.getBytes(StandardCharsets.UTF_8));
+    String classPath = new File(
+        Pru.class.getProtectionDomain().getCodeSource().getLocation().toURI()).getPath();
+    int res = javac.run(null, null, null,
+        "-encoding", "UTF-8", "-cp", classPath, "-d", dir.toString(), file.toString());
+    Assert.assertEquals(res, 0, "javac exit code for " + file);
+    URLClassLoader loader =
+        new URLClassLoader(new URL[]{dir.toUri().toURL()}, Pru.class.getClassLoader());
+    return (TranslatedProgram) loader.loadClass("translated." + className)
+        .getConstructor().newInstance();
+  }
+
+  private void runScanLoop(Consumer<CodeEmitter> generator, String className)
+      throws Exception {
+    TranslatedProgram program = compile(generator, className);
+    CodeEmitter ce = new CodeEmitter();
+    generator.accept(ce);
+    BinaryCode code = ce.visitEnd();
+    Pru expected = new Pru(ExecutionMode.INTERPRETER);
+    expected.setCode(code);
+    Pru actual = new Pru();
+    program.load(actual);
+
+    Random rnd = new Random(42);
+    for (int i = 0; i < 200000; ) {
+      int in = rnd.nextInt();
+      expected.setReg(inReg, in);
+      actual.setReg(inReg, in);
+      expected.ram().put(0, (byte) 1);
+      actual.ram().put(0, (byte) 1);
+
+      int cycles = 1 + rnd.nextInt(1000);
+      for (int j = 0; j < cycles; j++) {
+        expected.tick();
+      }
+      program.run(actual, cycles);
+      i += cycles;
+      ExecutionModeTest.assertSameState(actual, expected, className + ", tick " + i);
+    }
+  }
+
+  @Test
+  public void stepControl() throws Exception {
+    runScanLoop(new PRU_STEP_CONTROL_CodeGenerator(), "StepControl");
+  }
+
+  @Test
+  public void materialCutter() throws Exception {
+    runScanLoop(new PRU_MATERIAL_CUTTER_Program_CodeGenerator(), "MaterialCutter");
+  }
+
+  @Test
+  public void pulseGenerator() throws Exception {
+    runScanLoop(new PRU_PULSE_GENERATOR_CodeGenerator(), "PulseGenerator");
+  }
+
+  @Test
+  public void mulDiv() throws Exception {
+    PRU_MULDIV_CodeGenerator generator = new PRU_MULDIV_CodeGenerator();
+    TranslatedProgram program = compile(generator, "MulDiv");
+    CodeEmitter ce = new CodeEmitter();
+    generator.accept(ce);
+    Pru expected = new Pru(ExecutionMode.INTERPRETER);
+    expected.setCode(ce.visitEnd());
+    Pru actual = new Pru();
+    program.load(actual);
+    Random rnd = new Random(42);
+    for (int i = 0; i < 1000; i++) {
+      for (int reg = 1; reg <= 3; reg++) {
+        int value = rnd.nextInt();
+        expected.setReg(new Register(reg, RegisterField.dw), value);
+        actual.setReg(new Register(reg, RegisterField.dw), value);
+      }
+      expected.setPc(0);
+      actual.setPc(0);
+      Assert.assertEquals(program.runTillHalt(actual, 10000), expected.runTillHalt(10000),
+          "runTillHalt time, iteration " + i);
+      ExecutionModeTest.assertSameState(actual, expected, "iteration " + i);
+    }
+  }
+}
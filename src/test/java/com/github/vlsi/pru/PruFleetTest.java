@@ -0,0 +1,169 @@
+package com.github.vlsi.pru;
+
+import com.github.vlsi.pru.plc110.CodeEmitter;
+import com.github.vlsi.pru.plc110.ExecutionMode;
+import com.github.vlsi.pru.plc110.LdiInstruction;
+import com.github.vlsi.pru.plc110.MemoryTransferInstruction;
+import com.github.vlsi.pru.plc110.Program;
+import com.github.vlsi.pru.plc110.Pru;
+import com.github.vlsi.pru.plc110.PruFleet;
+import com.github.vlsi.pru.plc110.Register;
+import com.github.vlsi.pru.plc110.RegisterField;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import st61131.pru.PRU_MATERIAL_CUTTER_Program_CodeGenerator;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class PruFleetTest {
+  private final static Register inReg = new Register(31, RegisterField.dw);
+  private static final Register R1 = new Register(1, RegisterField.dw);
+  private static final Register R10 = new Register(10, RegisterField.dw);
+
+  private static Program materialCutter() {
+    CodeEmitter ce = new CodeEmitter();
+    new PRU_MATERIAL_CUTTER_Program_CodeGenerator().accept(ce);
+    return Program.of(ce.visitEnd());
+  }
+
+  @Test
+  public void unitsRunWithOwnInputs() {
+    Program program = materialCutter();
+    int size = 100;
+    int quantum = 500;
+    Random[] inputs = new Random[size];
+    for (int i = 0; i < size; i++) {
+      inputs[i] = new Random(i);
+    }
+    List<Long> progress = new ArrayList<>();
+    PruFleet fleet = new PruFleet(program, size, ExecutionMode.PREDECODED, new ForkJoinPool(4));
+    fleet.run(10000, quantum, new PruFleet.Listener() {
+      @Override
+      public void beforeQuantum(int unit, Pru cpu) {
+        cpu.setReg(inReg, inputs[unit].nextInt());
+        cpu.setRamByte(0, (byte) 1);
+      }
+
+      @Override
+      public void progress(long cycles, int running) {
+        progress.add(cycles);
+      }
+    });
+    Assert.assertEquals(fleet.getCycleCount(), 10000, "cycleCount");
+    Assert.assertEquals(progress.size(), 20, "progress reports");
+    Assert.assertEquals(fleet.getRunningCount(), size, "running units");
+
+    for (int unit : new int[]{0, 1, 57, size - 1}) {
+      Pru expected = new Pru(ExecutionMode.INTERPRETER);
+      expected.setProgram(program);
+      Random rnd = new Random(unit);
+      for (int i = 0; i < 10000; i += quantum) {
+        expected.setReg(inReg, rnd.nextInt());
+        expected.setRamByte(0, (byte) 1);
+        expected.run(quantum);
+      }
+      ExecutionModeTest.assertSameState(fleet.getUnit(unit), expected, "unit " + unit);
+    }
+  }
+
+  @Test
+  public void unitEvents() {
+    CodeEmitter ce = new CodeEmitter();
+    for (int i = 0; i < 10; i++) {
+      ce.visitInstruction(new LdiInstruction(R1, (short) i));
+    }
+    ce.visitInstruction(new MemoryTransferInstruction(MemoryTransferInstruction.Operation.STORE,
+        R1).setAddress(R10).setOffset(0).setLength(4).encode());
+    PruFleet fleet = new PruFleet(Program.of(ce.visitEnd()), 20);
+    fleet.getUnit(3).setReg(R10, 0x8000);
+    List<String> events = Collections.synchronizedList(new ArrayList<>());
+    AtomicInteger quanta = new AtomicInteger();
+    fleet.run(1000, 4, new PruFleet.Listener() {
+      @Override
+      public void afterQuantum(int unit, Pru cpu) {
+        quanta.incrementAndGet();
+      }
+
+      @Override
+      public void halted(int unit, Pru cpu) {
+        events.add("halted " + unit);
+      }
+
+      @Override
+      public void failed(int unit, Pru cpu, RuntimeException e) {
+        events.add("failed " + unit);
+      }
+    });
+    Assert.assertEquals(fleet.getRunningCount(), 0, "running units");
+    Assert.assertFalse(fleet.isRunning(0), "unit 0 is running");
+    Assert.assertTrue(events.contains("failed 3"), "unit 3 should fail: " + events);
+    Assert.assertEquals(events.size(), 20, "events: " + events);
+    Assert.assertEquals(fleet.getCycleCount(), 16, "the fleet stops once all units stop");
+    Assert.assertEquals(fleet.getUnit(0).getRamInt(0), 9, "R1 stored by unit 0");
+    Assert.assertEquals(quanta.get(), 19 * 4 + 3, "unit 3 fails in its 4th quantum");
+  }
+
+  @Test
+  public void footprint() {
+    Pru cpu = new Pru();
+    long initial = cpu.getFootprint();
+    Assert.assertTrue(initial < 4096, "RAM pages are allocated lazily: " + initial);
+    cpu.setRamInt(0x10, 1);
+    cpu.setRamInt(0x20, 1);
+    long written = cpu.getFootprint();
+    Assert.assertTrue(written > initial && written < initial + 512,
+        "a single page is allocated: " + initial + " -> " + written);
+    cpu.reset();
+    Assert.assertEquals(cpu.getRamInt(0x10), 0, "RAM after reset");
+
+    int size = 10000;
+    PruFleet fleet = new PruFleet(materialCutter(), size);
+    Assert.assertTrue(fleet.getFootprint() < size * 4096L, "fleet: " + fleet.getFootprint());
+    fleet.run(2000, 1000, new PruFleet.Listener() {
+    });
+    Assert.assertTrue(fleet.getFootprint() < size * 4096L,
+        "the program writes little RAM: " + fleet.getFootprint());
+  }
+
+  private static String fieldCounts(String className) throws ClassNotFoundException {
+    int references = 0;
+    int ints = 0;
+    int booleans = 0;
+    List<String> other = new ArrayList<>();
+    for (Field field : Class.forName(className).getDeclaredFields()) {
+      if (Modifier.isStatic(field.getModifiers()) || field.isSynthetic()) {
+        continue;
+      }
+      Class<?> type = field.getType();
+      if (!type.isPrimitive()) {
+        references++;
+      } else if (type == int.class) {
+        ints++;
+      } else if (type == boolean.class) {
+        booleans++;
+      } else {
+        other.add(field.getName());
+      }
+    }
+    return references + " references, " + ints + " ints, " + booleans + " booleans, other "
+        + other;
+  }
+
+  @Test
+  public void footprintFieldCounts() throws ClassNotFoundException {
+    // getFootprint() uses hand-maintained field counts, so update them when the fields change
+    Assert.assertEquals(fieldCounts("com.github.vlsi.pru.plc110.Pru"),
+        "18 references, 11 ints, 3 booleans, other []", "Pru.getFootprint");
+    Assert.assertEquals(fieldCounts("com.github.vlsi.pru.plc110.DataMemory"),
+        "6 references, 1 ints, 1 booleans, other []", "DataMemory.INSTANCE_SIZE");
+    Assert.assertEquals(fieldCounts("com.github.vlsi.pru.plc110.ControlRegisters"),
+        "2 references, 1 ints, 2 booleans, other []", "ControlRegisters.footprint");
+  }
+}
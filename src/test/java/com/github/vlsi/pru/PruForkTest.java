@@ -0,0 +1,116 @@
+package com.github.vlsi.pru;
+
+import com.github.vlsi.pru.plc110.BinaryCode;
+import com.github.vlsi.pru.plc110.CodeEmitter;
+import com.github.vlsi.pru.plc110.ExecutionMode;
+import com.github.vlsi.pru.plc110.Pru;
+import com.github.vlsi.pru.plc110.Register;
+import com.github.vlsi.pru.plc110.RegisterField;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+import st61131.pru.PRU_MATERIAL_CUTTER_Program_CodeGenerator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+public class PruForkTest {
+  private final static Register inReg = new Register(31, RegisterField.dw);
+  private final static int WARMUP_TICKS = 20000;
+  private final static int TICKS = 20000;
+
+  @DataProvider
+  public Iterator<Object[]> modes() {
+    return Arrays.stream(ExecutionMode.values())
+        .map(mode -> new Object[]{mode})
+        .iterator();
+  }
+
+  private static BinaryCode materialCutter() {
+    CodeEmitter ce = new CodeEmitter();
+    new PRU_MATERIAL_CUTTER_Program_CodeGenerator().accept(ce);
+    return ce.visitEnd();
+  }
+
+  /**
+   * Runs the scan loop with random inputs. The host exchange is requested via
+   * {@link Pru#setRamByte(int, byte)}, so the RAM stays paged.
+   */
+  static void runScanLoop(Pru cpu, long seed, int ticks) {
+    Random rnd = new Random(seed);
+    for (int i = 0; i < ticks; ) {
+      cpu.setReg(inReg, rnd.nextInt());
+      cpu.setRamByte(0, (byte) 1);
+      int cycles = 1 + rnd.nextInt(1000);
+      cpu.run(cycles);
+      i += cycles;
+    }
+  }
+
+  @Test(dataProvider = "modes")
+  public void forksContinueIndependently(ExecutionMode mode) {
+    BinaryCode code = materialCutter();
+    Pru parent = new Pru(mode);
+    parent.setCode(code);
+    runScanLoop(parent, 0, WARMUP_TICKS);
+
+    List<Pru> forks = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      forks.add(parent.fork());
+    }
+    for (int i = 0; i < forks.size(); i++) {
+      runScanLoop(forks.get(i), i + 1, TICKS);
+    }
+    // Writes of the forks must not be visible to the parent
+    runScanLoop(parent, 1, TICKS);
+
+    for (int i = 0; i <= forks.size(); i++) {
+      Pru expected = new Pru(ExecutionMode.INTERPRETER);
+      expected.setCode(code);
+      runScanLoop(expected, 0, WARMUP_TICKS);
+      runScanLoop(expected, i == forks.size() ? 1 : i + 1, TICKS);
+      Pru actual = i == forks.size() ? parent : forks.get(i);
+      ExecutionModeTest.assertSameState(actual, expected, mode + ", continuation " + i);
+    }
+  }
+
+  @Test
+  public void writesAreCopiedOnWrite() {
+    Pru parent = new Pru();
+    parent.setRamInt(0x100, 1);
+    Pru child = parent.fork();
+    child.setRamInt(0x100, 2);
+    child.setRamInt(0x7bf0, 3);
+    parent.setRamInt(0x2000, 4);
+
+    Assert.assertEquals(parent.getRamInt(0x100), 1, "parent 0x100");
+    Assert.assertEquals(parent.getRamInt(0x7bf0), 0, "parent 0x7bf0");
+    Assert.assertEquals(child.getRamInt(0x100), 2, "child 0x100");
+    Assert.assertEquals(child.getRamInt(0x7bf0), 3, "child 0x7bf0");
+    Assert.assertEquals(child.getRamInt(0x2000), 0, "child 0x2000");
+
+    child.reset();
+    Assert.assertEquals(child.getRamInt(0x100), 0, "reset child 0x100");
+    Assert.assertEquals(parent.getRamInt(0x100), 1, "parent 0x100 after child reset");
+  }
+
+  @Test
+  public void forkOfExposedRam() {
+    Pru parent = new Pru();
+    parent.ram().putInt(0x10fe, 0x12345678);
+    Pru child = parent.fork();
+    Assert.assertEquals(child.getRamInt(0x10fe), 0x12345678, "child sees parent RAM");
+    parent.ram().putInt(0x10fe, 1);
+    child.setRamInt(0x10fe, 2);
+    Assert.assertEquals(parent.ram().getInt(0x10fe), 1, "parent");
+    Assert.assertEquals(child.ram().getInt(0x10fe), 2, "child");
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void ramAddressIsChecked() {
+    new Pru().getRamInt(0x8000);
+  }
+}
@@ -0,0 +1,78 @@
+package com.github.vlsi.pru;
+
+import com.github.vlsi.pru.plc110.CodeEmitter;
+import com.github.vlsi.pru.plc110.LdiInstruction;
+import com.github.vlsi.pru.plc110.MemoryTransferInstruction;
+import com.github.vlsi.pru.plc110.Program;
+import com.github.vlsi.pru.plc110.Pru;
+import com.github.vlsi.pru.plc110.PruPool;
+import com.github.vlsi.pru.plc110.Register;
+import com.github.vlsi.pru.plc110.RegisterField;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.nio.ByteBuffer;
+
+public class PruPoolTest {
+  private static final Register R1 = new Register(1, RegisterField.dw);
+  private static final Register R2 = new Register(2, RegisterField.dw);
+  private static final int[] ADDRESSES = {0x10, 0x1234, 0x20fe, 0x3ff0};
+
+  private static Program storeProgram() {
+    CodeEmitter ce = new CodeEmitter();
+    for (int address : ADDRESSES) {
+      ce.visitInstruction(new LdiInstruction(R2, (short) address));
+      ce.visitInstruction(new MemoryTransferInstruction(MemoryTransferInstruction.Operation.STORE,
+          R1).setAddress(R2).setOffset(0).setLength(4).encode());
+    }
+    return Program.of(ce.visitEnd());
+  }
+
+  @Test
+  public void releasedCpuIsReset() {
+    PruPool pool = new PruPool(storeProgram());
+    Pru cpu = pool.acquire();
+    cpu.setReg(R1, 0x12345678);
+    int cycles = cpu.runTillHalt(1000);
+    Assert.assertEquals(cpu.getReg(R2), ADDRESSES[ADDRESSES.length - 1], "R2");
+    pool.release(cpu);
+
+    Pru reused = pool.acquire();
+    Assert.assertSame(reused, cpu, "released cpu should be reused");
+    Assert.assertEquals(reused.getPc(), 0, "pc");
+    Assert.assertEquals(reused.getCycleCount(), 0, "cycleCount");
+    Assert.assertEquals(reused.getCycleCountNonReset(), 0, "cycleCountNonReset");
+    Assert.assertFalse(reused.getCarry(), "carry");
+    Assert.assertEquals(reused.getReg(R1), 0, "R1");
+    Assert.assertEquals(reused.getReg(R2), 0, "R2");
+    ByteBuffer ram = reused.ram();
+    // The control registers are not cleared to zero, so compare with a new cpu
+    ByteBuffer initial = new Pru().ram();
+    for (int i = 0; i < ram.capacity(); i++) {
+      Assert.assertEquals(ram.get(i), initial.get(i), "ram[" + i + "]");
+    }
+
+    reused.setReg(R1, 0x12345678);
+    Assert.assertEquals(reused.runTillHalt(1000), cycles, "the same program takes the same time");
+    for (int address : ADDRESSES) {
+      Assert.assertEquals(ram.getInt(address), 0x12345678, "ram at " + address);
+    }
+  }
+
+  @Test
+  public void ramWrittenByHostIsCleared() {
+    PruPool pool = new PruPool(storeProgram());
+    Pru cpu = pool.acquire();
+    cpu.ram().putInt(0x3000, 42);
+    pool.release(cpu);
+    Assert.assertEquals(pool.acquire().ram().getInt(0x3000), 0);
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void foreignCpuIsRejected() {
+    PruPool pool = new PruPool(storeProgram());
+    Pru cpu = new Pru();
+    cpu.setProgram(storeProgram());
+    pool.release(cpu);
+  }
+}
@@ -0,0 +1,103 @@
+package com.github.vlsi.pru;
+
+import com.github.vlsi.pru.plc110.BinaryCode;
+import com.github.vlsi.pru.plc110.CodeEmitter;
+import com.github.vlsi.pru.plc110.ExecutionMode;
+import com.github.vlsi.pru.plc110.Program;
+import com.github.vlsi.pru.plc110.Pru;
+import com.github.vlsi.pru.plc110.PruSnapshot;
+import com.github.vlsi.pru.plc110.Register;
+import com.github.vlsi.pru.plc110.RegisterField;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+import st61131.pru.PRU_STEP_CONTROL_CodeGenerator;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+
+public class PruSnapshotTest {
+  private final static int WARMUP_TICKS = 50000;
+  private final static int TICKS = 20000;
+
+  @DataProvider
+  public Iterator<Object[]> modes() {
+    return Arrays.stream(ExecutionMode.values())
+        .map(mode -> new Object[]{mode})
+        .iterator();
+  }
+
+  private static BinaryCode stepControl() {
+    CodeEmitter ce = new CodeEmitter();
+    new PRU_STEP_CONTROL_CodeGenerator().accept(ce);
+    return ce.visitEnd();
+  }
+
+  @Test(dataProvider = "modes")
+  public void restoreWarmedUpState(ExecutionMode mode) {
+    BinaryCode code = stepControl();
+    Program program = Program.of(code);
+    Pru warm = new Pru(ExecutionMode.PREDECODED);
+    warm.setProgram(program);
+    PruForkTest.runScanLoop(warm, 0, WARMUP_TICKS);
+    PruSnapshot snapshot = warm.snapshot();
+    Assert.assertEquals(snapshot.getPc(), warm.getPc(), "snapshot pc");
+    Assert.assertEquals(snapshot.getCycleCount(), warm.getCycleCount(), "snapshot cycleCount");
+
+    Pru cpu = new Pru(mode);
+    cpu.setProgram(program);
+    for (int seed = 1; seed <= 3; seed++) {
+      cpu.restore(snapshot);
+      PruForkTest.runScanLoop(cpu, seed, TICKS);
+
+      Pru expected = new Pru(ExecutionMode.INTERPRETER);
+      expected.setCode(code);
+      PruForkTest.runScanLoop(expected, 0, WARMUP_TICKS);
+      PruForkTest.runScanLoop(expected, seed, TICKS);
+      ExecutionModeTest.assertSameState(cpu, expected, mode + ", seed " + seed);
+    }
+  }
+
+  @Test
+  public void snapshotIsNotAffectedByLaterChanges() {
+    Register r5 = new Register(5, RegisterField.dw);
+    Pru cpu = new Pru();
+    cpu.setReg(r5, 42);
+    cpu.setRamInt(0x200, 7);
+    cpu.setPc(3);
+    PruSnapshot snapshot = cpu.snapshot();
+
+    cpu.setReg(r5, 1);
+    cpu.setRamInt(0x200, 1);
+    cpu.ram().putInt(0x300, 1);
+    cpu.setPc(0);
+
+    cpu.restore(snapshot);
+    Assert.assertEquals(cpu.getReg(r5), 42, "R5");
+    Assert.assertEquals(cpu.getRamInt(0x200), 7, "ram at 0x200");
+    Assert.assertEquals(cpu.getRamInt(0x300), 0, "ram at 0x300");
+    Assert.assertEquals(cpu.getPc(), 3, "pc");
+
+    cpu.reset();
+    Assert.assertEquals(cpu.getRamInt(0x200), 0, "ram at 0x200 after reset");
+    cpu.restore(snapshot);
+    Assert.assertEquals(cpu.getRamInt(0x200), 7, "ram at 0x200 after second restore");
+  }
+
+  @Test
+  public void ramViewStaysLiveAfterRestore() {
+    Pru cpu = new Pru();
+    cpu.setRamInt(0x200, 7);
+    ByteBuffer ram = cpu.ram();
+    PruSnapshot snapshot = cpu.snapshot();
+    cpu.setRamInt(0x200, 1);
+
+    cpu.restore(snapshot);
+    Assert.assertEquals(ram.getInt(0x200), 7, "held view shows restored ram");
+    ram.putInt(0x300, 42);
+    Assert.assertEquals(cpu.getRamInt(0x300), 42, "cpu reads host write via held view");
+    cpu.setRamInt(0x204, 5);
+    Assert.assertEquals(ram.getInt(0x204), 5, "held view shows cpu write");
+  }
+}
@@ -0,0 +1,169 @@
+package com.github.vlsi.pru;
+
+import com.github.vlsi.pru.plc110.ArithmeticInstruction;
+import com.github.vlsi.pru.plc110.BinaryCode;
+import com.github.vlsi.pru.plc110.CodeEmitter;
+import com.github.vlsi.pru.plc110.ExecutionMode;
+import com.github.vlsi.pru.plc110.Format2Instruction;
+import com.github.vlsi.pru.plc110.JumpInstruction;
+import com.github.vlsi.pru.plc110.Label;
+import com.github.vlsi.pru.plc110.LdiInstruction;
+import com.github.vlsi.pru.plc110.MemoryTransferInstruction;
+import com.github.vlsi.pru.plc110.Pru;
+import com.github.vlsi.pru.plc110.PruSubsystem;
+import com.github.vlsi.pru.plc110.Register;
+import com.github.vlsi.pru.plc110.RegisterField;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.Iterator;
+
+public class PruSubsystemTest {
+  private static final Register R1 = new Register(1, RegisterField.dw);
+  private static final Register R2 = new Register(2, RegisterField.dw);
+  private static final Register R3 = new Register(3, RegisterField.dw);
+  private static final Register R10 = new Register(10, RegisterField.dw);
+
+  @DataProvider
+  public Iterator<Object[]> modes() {
+    return Arrays.stream(ExecutionMode.values())
+        .map(mode -> new Object[]{mode})
+        .iterator();
+  }
+
+  private static MemoryTransferInstruction constantTransfer(
+      MemoryTransferInstruction.Operation op, Register reg, int entry) {
+    return new MemoryTransferInstruction(op, reg)
+        .setAddress(entry).setOffset(0).setLength(4).encode();
+  }
+
+  /**
+   * Counts in R1 and publishes the counter in the own data RAM.
+   */
+  private static BinaryCode producer() {
+    CodeEmitter ce = new CodeEmitter();
+    Label loop = new Label("loop");
+    ce.visitLabel(loop);
+    ce.visitInstruction(
+        new ArithmeticInstruction(ArithmeticInstruction.Operation.ADD, R1, R1, 1));
+    ce.visitInstruction(constantTransfer(MemoryTransferInstruction.Operation.STORE, R1, 24));
+    ce.visitInstruction(new JumpInstruction(Format2Instruction.Operation.JMP, loop, R1));
+    return ce.visitEnd();
+  }
+
+  /**
+   * Copies the counter from the data RAM of the other core to shared RAM.
+   */
+  private static BinaryCode consumer() {
+    CodeEmitter ce = new CodeEmitter();
+    Label loop = new Label("loop");
+    ce.visitLabel(loop);
+    ce.visitInstruction(constantTransfer(MemoryTransferInstruction.Operation.LOAD, R2, 25));
+    ce.visitInstruction(constantTransfer(MemoryTransferInstruction.Operation.STORE, R2, 28));
+    ce.visitInstruction(new JumpInstruction(Format2Instruction.Operation.JMP, loop, R1));
+    return ce.visitEnd();
+  }
+
+  private static PruSubsystem subsystem(ExecutionMode mode) {
+    PruSubsystem res = new PruSubsystem(mode);
+    res.getPru(0).setCode(producer());
+    res.getPru(1).setCode(consumer());
+    return res;
+  }
+
+  private static void assertSameState(PruSubsystem actual, PruSubsystem expected, String message) {
+    for (int cpuId = 0; cpuId < 2; cpuId++) {
+      ExecutionModeTest.assertSameState(actual.getPru(cpuId), expected.getPru(cpuId),
+          message + ", PRU" + cpuId);
+    }
+    Assert.assertEquals(actual.getPru(0).getRamInt(0x10000),
+        expected.getPru(0).getRamInt(0x10000), message + ", shared RAM");
+  }
+
+  @Test(dataProvider = "modes")
+  public void lockstep(ExecutionMode mode) {
+    PruSubsystem expected = subsystem(ExecutionMode.INTERPRETER);
+    PruSubsystem actual = subsystem(mode);
+    for (int i = 0; i < 10; i++) {
+      expected.run(997);
+      actual.run(997);
+      assertSameState(actual, expected, mode + ", step " + i);
+    }
+    Assert.assertEquals(actual.getCycleCount(), 9970, "cycleCount");
+    Pru pru1 = actual.getPru(1);
+    Assert.assertEquals(pru1.getRamInt(0x10000), pru1.getReg(R2), "PRU1 copies to shared RAM");
+    Assert.assertTrue(pru1.getReg(R2) > 0, "PRU1 sees data RAM of PRU0: " + pru1.getReg(R2));
+  }
+
+  @Test(dataProvider = "modes")
+  public void quantum(ExecutionMode mode) {
+    PruSubsystem expected = subsystem(ExecutionMode.INTERPRETER);
+    PruSubsystem actual = subsystem(mode);
+    for (int i = 0; i < 10; i++) {
+      expected.run(997, 64);
+      actual.run(997, 64);
+      assertSameState(actual, expected, mode + ", step " + i);
+    }
+  }
+
+  @Test(dataProvider = "modes")
+  public void parallelMatchesLockstep(ExecutionMode mode) {
+    for (int lookahead : new int[]{1, 50, 10000}) {
+      PruSubsystem expected = subsystem(ExecutionMode.INTERPRETER);
+      PruSubsystem actual = subsystem(mode);
+      for (int i = 0; i < 10; i++) {
+        expected.run(997);
+        actual.runParallel(997, lookahead);
+        assertSameState(actual, expected, mode + ", lookahead " + lookahead + ", step " + i);
+      }
+      Assert.assertEquals(actual.getCycleCount(), 9970, "cycleCount");
+    }
+  }
+
+  @Test(expectedExceptions = IllegalStateException.class,
+      expectedExceptionsMessageRegExp = "Invalid memory access.*")
+  public void parallelPropagatesFailure() {
+    PruSubsystem subsystem = subsystem(ExecutionMode.PREDECODED);
+    subsystem.getPru(1).setInstructions(
+        new MemoryTransferInstruction(MemoryTransferInstruction.Operation.LOAD, R3)
+            .setAddress(R10).setOffset(0).setLength(4).encode());
+    subsystem.getPru(1).setReg(R10, 0x8000);
+    subsystem.runParallel(1000, 10);
+  }
+
+  @Test(expectedExceptions = IllegalStateException.class,
+      expectedExceptionsMessageRegExp = "Pru 1 accesses control registers of Pru 0.*")
+  public void parallelRejectsControlRegistersOfOtherCore() {
+    PruSubsystem subsystem = subsystem(ExecutionMode.PREDECODED);
+    subsystem.getPru(1).setInstructions(
+        new LdiInstruction(R10, (short) 0x700C),
+        new MemoryTransferInstruction(MemoryTransferInstruction.Operation.LOAD, R3)
+            .setAddress(R10).setOffset(0).setLength(4).encode());
+    subsystem.runParallel(1000, 10);
+  }
+
+  @Test(dataProvider = "modes")
+  public void controlRegistersOfOtherCore(ExecutionMode mode) {
+    PruSubsystem subsystem = new PruSubsystem(mode);
+    subsystem.getPru(0).setInstructions(
+        new LdiInstruction(R1, (short) 0),
+        new LdiInstruction(R1, (short) 0));
+    subsystem.getPru(1).setInstructions(
+        new LdiInstruction(R10, (short) 0x700C),
+        new MemoryTransferInstruction(MemoryTransferInstruction.Operation.LOAD, R3)
+            .setAddress(R10).setOffset(0).setLength(4).encode());
+    subsystem.run(100);
+    Pru pru1 = subsystem.getPru(1);
+    Assert.assertEquals(pru1.getReg(R3), 2, "PRU1 reads CYCLE of PRU0");
+    Assert.assertEquals(pru1.getRamInt(0x700C), subsystem.getPru(0).getCycleCount(),
+        "CYCLE of PRU0 read by host via PRU1");
+  }
+
+  @Test(expectedExceptions = IllegalStateException.class)
+  public void coreCannotBeRestoredAlone() {
+    Pru pru0 = new PruSubsystem().getPru(0);
+    pru0.restore(pru0.snapshot());
+  }
+}
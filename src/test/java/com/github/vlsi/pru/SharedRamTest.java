@@ -0,0 +1,83 @@
+package com.github.vlsi.pru;
+
+import com.github.vlsi.pru.plc110.ExecutionMode;
+import com.github.vlsi.pru.plc110.MemoryTransferInstruction;
+import com.github.vlsi.pru.plc110.Pru;
+import com.github.vlsi.pru.plc110.PruSnapshot;
+import com.github.vlsi.pru.plc110.Register;
+import com.github.vlsi.pru.plc110.RegisterField;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+
+public class SharedRamTest {
+  private static final Register R1 = new Register(1, RegisterField.dw);
+  private static final Register R2 = new Register(2, RegisterField.dw);
+  private static final Register R10 = new Register(10, RegisterField.dw);
+
+  @DataProvider
+  public Iterator<Object[]> modes() {
+    return Arrays.stream(ExecutionMode.values())
+        .map(mode -> new Object[]{mode})
+        .iterator();
+  }
+
+  /**
+   * Maps the file the way the host process would.
+   */
+  private static MappedByteBuffer mapAsHost(Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ,
+        StandardOpenOption.WRITE)) {
+      MappedByteBuffer res = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+      res.order(ByteOrder.LITTLE_ENDIAN);
+      return res;
+    }
+  }
+
+  @Test(dataProvider = "modes")
+  public void hostExchangesDataViaFile(ExecutionMode mode) throws IOException {
+    Path file = Files.createTempFile("pru", ".ram");
+    try {
+      Pru cpu = new Pru(mode);
+      cpu.setRamInt(0x2000, 7);
+      cpu.shareRam(file);
+      MappedByteBuffer host = mapAsHost(file);
+      Assert.assertEquals(host.getInt(0x2000), 7, "RAM contents are moved to the file");
+
+      cpu.setInstructions(
+          new MemoryTransferInstruction(MemoryTransferInstruction.Operation.LOAD, R2)
+              .setAddress(R10).setOffset(0).setLength(4).encode(),
+          new MemoryTransferInstruction(MemoryTransferInstruction.Operation.STORE, R1)
+              .setAddress(R10).setOffset(4).setLength(4).encode());
+      cpu.setReg(R10, 0x100);
+      cpu.setReg(R1, 0x12345678);
+      host.putInt(0x100, 42);
+      cpu.runTillHalt(100);
+      Assert.assertEquals(cpu.getReg(R2), 42, "program reads host write");
+      Assert.assertEquals(host.getInt(0x104), 0x12345678, "host reads program write");
+      Assert.assertEquals(cpu.ram().getInt(0x104), 0x12345678, "ram() is backed by the file");
+
+      PruSnapshot snapshot = cpu.snapshot();
+      cpu.reset();
+      Assert.assertEquals(host.getInt(0x104), 0, "reset clears the file");
+      cpu.restore(snapshot);
+      Assert.assertEquals(host.getInt(0x104), 0x12345678, "restore keeps the file mapping");
+
+      Pru fork = cpu.fork();
+      fork.setRamInt(0x104, 1);
+      Assert.assertEquals(host.getInt(0x104), 0x12345678, "forks do not write the file");
+    } finally {
+      Files.deleteIfExists(file);
+    }
+  }
+}